@@ -0,0 +1,215 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * migrating populated cache dbs forward from the first version, on a real sqlite
+ */
+@RunWith(AndroidJUnit4.class)
+public class MarvelDBMigrationTest {
+
+	private static final String MIGRATED = "marvelCacheMigrationTest";
+	private static final String FRESH = "marvelCacheFreshTest";
+
+	private Context context;
+	private MarvelDBHelper migrated;
+	private MarvelDBHelper fresh;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getTargetContext();
+		context.deleteDatabase(MIGRATED);
+		context.deleteDatabase(FRESH);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (migrated != null) {
+			migrated.close();
+		}
+		if (fresh != null) {
+			fresh.close();
+		}
+		context.deleteDatabase(MIGRATED);
+		context.deleteDatabase(FRESH);
+	}
+
+	/**
+	 * write a version 1 db, as the first release of the app did, with the same character in it twice
+	 */
+	private void createVersion1() {
+		SQLiteDatabase db = context.openOrCreateDatabase(MIGRATED, Context.MODE_PRIVATE, null);
+		db.execSQL("CREATE TABLE characters(dbkey INTEGER PRIMARY KEY,id INTEGER,name TEXT,description TEXT," +
+				"image_path TEXT,image_suffix TEXT,timestamp INTEGER)");
+		insert(db, 1009610, "Spider-Man", "bitten by a radioactive spider", 1000);
+		insert(db, 1009351, "Hulk", null, 2000);
+		insert(db, 1009610, "Spider-Man", "the amazing", 3000);
+		db.setVersion(1);
+		db.close();
+	}
+
+	private static void insert(SQLiteDatabase db, int id, String name, String description, long timestamp) {
+		db.execSQL("INSERT INTO characters(id,name,description,image_path,image_suffix,timestamp)" +
+				" VALUES (?,?,?,?,?,?)", new Object[] { id, name, description, "http://i.annihil.us/" + id, "jpg", timestamp });
+	}
+
+	private MarvelDBHelper open(String name) {
+		return new MarvelDBHelper(name, 2000, 1024 * 1024, 16, 1, context);
+	}
+
+	@Test
+	public void testKeepsCharacters() throws Exception {
+		createVersion1();
+		migrated = open(MIGRATED);
+		assertEquals(MarvelDBHelper.DATABASE_VERSION, migrated.getReadableDatabase().getVersion());
+		Character hulk = migrated.getCharacter4Id(1009351);
+		assertNotNull(hulk);
+		assertEquals("Hulk", hulk.name);
+		assertNull(hulk.description);
+		assertEquals("http://i.annihil.us/1009351", hulk.thumbnail.path);
+		// the later of the two rows for the same id is the one kept
+		Character spiderMan = migrated.getCharacter4Id(1009610);
+		assertEquals("the amazing", spiderMan.description);
+		assertEquals(2, migrated.getCharacters().size());
+	}
+
+	@Test
+	public void testFillsNewColumns() throws Exception {
+		createVersion1();
+		migrated = open(MIGRATED);
+		Cursor c = migrated.getReadableDatabase().rawQuery(
+				"SELECT last_access, timestamp, hits, size FROM characters ORDER BY last_access DESC", null);
+		try {
+			assertEquals(2, c.getCount());
+			while (c.moveToNext()) {
+				assertEquals(c.getLong(1), c.getLong(0));
+				assertEquals(0, c.getInt(2));
+				assertTrue(c.getInt(3) > 0);
+			}
+		} finally {
+			c.close();
+		}
+		List<Character> recent = migrated.getCharacters(1);
+		assertEquals("Spider-Man", recent.get(0).name);
+	}
+
+	@Test
+	public void testIndexesTextAndKeepsIndexInStep() throws Exception {
+		createVersion1();
+		migrated = open(MIGRATED);
+		assertEquals(1, migrated.searchCharacters("spi", 10).characters.size());
+		assertEquals(0, migrated.searchCharacters("radioactive", 10).characters.size());
+		assertEquals(1, migrated.searchCharacters("amazing", 10).characters.size());
+
+		Character thor = new Character();
+		thor.id = 1009664;
+		thor.name = "Thor";
+		thor.description = "god of thunder";
+		ArrayList<Character> page = new ArrayList<>();
+		page.add(thor);
+		assertEquals(1, migrated.updateCharacters(page));
+		assertEquals(1, migrated.searchCharacters("thun", 10).characters.size());
+	}
+
+	@Test
+	public void testSchemaMatchesFreshDB() throws Exception {
+		createVersion1();
+		migrated = open(MIGRATED);
+		fresh = open(FRESH);
+		assertEquals(schema(fresh.getReadableDatabase()), schema(migrated.getReadableDatabase()));
+		assertEquals(columns(fresh.getReadableDatabase()), columns(migrated.getReadableDatabase()));
+	}
+
+	@Test
+	public void testFailedStepKeepsData() throws Exception {
+		createVersion1();
+		// a column that version 3 adds, already there, so that its step fails
+		SQLiteDatabase db = context.openOrCreateDatabase(MIGRATED, Context.MODE_PRIVATE, null);
+		db.execSQL("ALTER TABLE characters ADD COLUMN hits INTEGER");
+		db.close();
+		migrated = open(MIGRATED);
+		try {
+			migrated.getWritableDatabase();
+			fail("the failed migration should be thrown");
+		} catch (SQLException e) {
+		}
+		db = context.openOrCreateDatabase(MIGRATED, Context.MODE_PRIVATE, null);
+		try {
+			assertEquals(1, db.getVersion());
+			Cursor c = db.rawQuery("SELECT COUNT(*) FROM characters", null);
+			try {
+				c.moveToFirst();
+				assertEquals(3, c.getInt(0));
+			} finally {
+				c.close();
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void testEachVersionHasAStep() throws Exception {
+		for (int i = 0; i < MarvelDBHelper.MIGRATIONS.length; i++) {
+			assertEquals(i + 2, MarvelDBHelper.MIGRATIONS[i].toVersion);
+		}
+		assertEquals(MarvelDBHelper.DATABASE_VERSION,
+				MarvelDBHelper.MIGRATIONS[MarvelDBHelper.MIGRATIONS.length - 1].toVersion);
+	}
+
+	/**
+	 * @param db
+	 * @return the type and name of everything in the db, bar the fts table's own shadow tables
+	 */
+	private static List<String> schema(SQLiteDatabase db) {
+		ArrayList<String> schema = new ArrayList<>();
+		Cursor c = db.rawQuery("SELECT type, name FROM sqlite_master WHERE name NOT LIKE 'sqlite_%'" +
+				" AND name NOT LIKE 'android_%' ORDER BY type, name", null);
+		try {
+			while (c.moveToNext()) {
+				schema.add(c.getString(0) + " " + c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+		return schema;
+	}
+
+	/**
+	 * @param db
+	 * @return the name, type and default of each column of the characters table, in order
+	 */
+	private static List<String> columns(SQLiteDatabase db) {
+		ArrayList<String> columns = new ArrayList<>();
+		Cursor c = db.rawQuery("PRAGMA table_info(characters)", null);
+		try {
+			while (c.moveToNext()) {
+				columns.add(c.getString(1) + " " + c.getString(2) + " " + c.getString(4));
+			}
+		} finally {
+			c.close();
+		}
+		return columns;
+	}
+}
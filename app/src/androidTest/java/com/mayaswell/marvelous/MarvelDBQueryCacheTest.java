@@ -0,0 +1,123 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelDBHelper.QueryResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * keeping the api's answers to queries in the cache db, on a real sqlite
+ */
+@RunWith(AndroidJUnit4.class)
+public class MarvelDBQueryCacheTest {
+
+	private static final String NAME = "marvelCacheQueryTest";
+	private static final String KEY = new CharacterQuery("spi", true, 20, 0).key();
+
+	private Context context;
+	private MarvelDBHelper db;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getTargetContext();
+		context.deleteDatabase(NAME);
+		db = new MarvelDBHelper(NAME, 2000, 1024 * 1024, 16, 1, context);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		context.deleteDatabase(NAME);
+	}
+
+	private static Character character(int id, String name) {
+		Character c = new Character();
+		c.id = id;
+		c.name = name;
+		return c;
+	}
+
+	private static ArrayList<Character> page(Character... characters) {
+		ArrayList<Character> page = new ArrayList<>();
+		for (Character c: characters) {
+			page.add(c);
+		}
+		return page;
+	}
+
+	@Test
+	public void testKeepsAnswerInOrder() throws Exception {
+		assertNull(db.getQueryResult(KEY));
+		// not in name order, as the api could send them
+		long before = System.currentTimeMillis();
+		assertEquals(2, db.putQueryResult(KEY, 5, page(character(2, "Spiral"), character(1, "Spider-Man"))));
+		QueryResult answer = db.getQueryResult(KEY);
+		assertNotNull(answer);
+		assertEquals(2, answer.characters.size());
+		assertEquals("Spiral", answer.characters.get(0).name);
+		assertEquals("Spider-Man", answer.characters.get(1).name);
+		assertEquals(5, answer.total);
+		assertEquals(2, answer.count);
+		assertFalse(answer.isComplete());
+		assertTrue(answer.oldest >= before);
+	}
+
+	@Test
+	public void testReplacesAnswer() throws Exception {
+		db.putQueryResult(KEY, 2, page(character(2, "Spiral"), character(1, "Spider-Man")));
+		assertEquals(0, db.putQueryResult(KEY, 1, page(character(1, "Spider-Man"))));
+		QueryResult answer = db.getQueryResult(KEY);
+		assertEquals(1, answer.characters.size());
+		assertEquals(1, answer.characters.get(0).id);
+		assertTrue(answer.isComplete());
+		// the characters of the old answer are still cached, just not part of it
+		assertNotNull(db.getCharacter4Id(2));
+	}
+
+	@Test
+	public void testKeepsEmptyAnswer() throws Exception {
+		String key = new CharacterQuery("zzz", true, 20, 0).key();
+		db.putQueryResult(key, 0, new ArrayList<Character>());
+		QueryResult answer = db.getQueryResult(key);
+		assertNotNull(answer);
+		assertTrue(answer.characters.isEmpty());
+		assertTrue(answer.isComplete());
+	}
+
+	@Test
+	public void testDropsAnswerMissingACharacter() throws Exception {
+		db.putQueryResult(KEY, 2, page(character(2, "Spiral"), character(1, "Spider-Man")));
+		db.getWritableDatabase().execSQL("DELETE FROM characters WHERE id = 2");
+		assertNull(db.getQueryResult(KEY));
+	}
+
+	@Test
+	public void testKeepsAnswerOverRowBudget() throws Exception {
+		db.close();
+		context.deleteDatabase(NAME);
+		db = new MarvelDBHelper(NAME, 3, 1024 * 1024, 16, 1, context);
+		db.updateCharacters(page(character(1, "Spider-Man"), character(2, "Spiral"), character(3, "Spitfire")));
+		// the answer's characters are the least recently used, and it takes us over the budget
+		db.putQueryResult(KEY, 3, page(character(1, "Spider-Man"), character(2, "Spiral"), character(4, "Spot")));
+		QueryResult answer = db.getQueryResult(KEY);
+		assertNotNull(answer);
+		assertEquals(3, answer.characters.size());
+		assertTrue(answer.isComplete());
+		assertNull(db.getCharacter4Id(3));
+	}
+}
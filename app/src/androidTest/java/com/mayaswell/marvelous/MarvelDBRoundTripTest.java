@@ -0,0 +1,69 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * characters from the api, written to a real sqlite and read back with nothing held in memory
+ */
+@RunWith(AndroidJUnit4.class)
+public class MarvelDBRoundTripTest {
+
+	private static final String NAME = "marvelCacheRoundTripTest";
+	private static final String RESPONSE = "{\"code\":200,\"status\":\"Ok\",\"data\":{\"offset\":0,\"limit\":20," +
+			"\"total\":1,\"count\":1,\"results\":[{\"id\":1009268,\"name\":\"Deadpool\",\"description\":\"\"," +
+			"\"modified\":\"2013-10-18T17:33:26-0400\",\"thumbnail\":{\"path\":" +
+			"\"http://i.annihil.us/u/prod/marvel/i/mg/9/90/5261a86cacb99\",\"extension\":\"jpg\"}," +
+			"\"resourceURI\":\"http://gateway.marvel.com/v1/public/characters/1009268\"," +
+			"\"comics\":{\"available\":813,\"collectionURI\":" +
+			"\"http://gateway.marvel.com/v1/public/characters/1009268/comics\",\"items\":[],\"returned\":0}}]}}";
+
+	private Context context;
+	private MarvelDBHelper db;
+
+	@Before
+	public void setUp() throws Exception {
+		context = InstrumentationRegistry.getTargetContext();
+		context.deleteDatabase(NAME);
+		db = open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		context.deleteDatabase(NAME);
+	}
+
+	private MarvelDBHelper open() {
+		return new MarvelDBHelper(NAME, 2000, 1024 * 1024, 16, 1, context);
+	}
+
+	@Test
+	public void testReadBackLooksLikeApiCharacter() throws Exception {
+		ArrayList<Character> fromApi = MarvelAPI.parseCharacterResponse(RESPONSE).data.results;
+		db.updateCharacters(fromApi);
+		db.close();
+		db = open(); // so the in memory cache is cold
+		Character original = fromApi.get(0);
+		Character readBack = db.getCharacter4Id(original.id);
+		assertNotSame(original, readBack);
+		assertEquals(original.id, readBack.id);
+		assertTrue(CharacterRepository.sameAsShown(Collections.singletonList(original), Collections.singletonList(readBack)));
+		assertTrue(CharacterRepository.sameAsShown(fromApi, db.getCharactersMatching(original.name, 10).characters));
+	}
+}
@@ -0,0 +1,134 @@
+package com.mayaswell.marvelous;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * bounded, instrumented thread pool for api calls. there are at most poolSize threads, which time out when idle,
+ * and at most queueSize calls waiting for one of them: anything beyond that is rejected rather than piling up.
+ * Keeps track of how long calls wait in the queue, so we can see how it behaves under bursts.
+ */
+public class ApiExecutor extends ThreadPoolExecutor {
+
+	/**
+	 * snapshot of the state of the executor
+	 */
+	public static class Stats {
+		public final int queueDepth;
+		public final int activeCount;
+		public final long completed;
+		public final long rejected;
+		public final long averageWaitMs;
+		public final long maxWaitMs;
+
+		Stats(int queueDepth, int activeCount, long completed, long rejected, long averageWaitMs, long maxWaitMs) {
+			this.queueDepth = queueDepth;
+			this.activeCount = activeCount;
+			this.completed = completed;
+			this.rejected = rejected;
+			this.averageWaitMs = averageWaitMs;
+			this.maxWaitMs = maxWaitMs;
+		}
+
+		@Override
+		public String toString() {
+			return "queued "+queueDepth+", active "+activeCount+", completed "+completed+", rejected "+rejected
+					+", wait avg "+averageWaitMs+"ms max "+maxWaitMs+"ms";
+		}
+	}
+
+	/**
+	 * wraps a task with the time it was queued
+	 */
+	private static class TimedTask implements Runnable {
+		final Runnable task;
+		final long queuedAt = System.nanoTime();
+
+		TimedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final AtomicLong waitCount = new AtomicLong(0);
+	private final AtomicLong totalWaitNanos = new AtomicLong(0);
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+	private final AtomicLong rejectedCount = new AtomicLong(0);
+	private final Scheduler scheduler;
+
+	/**
+	 * @param name prefix for the names of the pool threads
+	 * @param poolSize maximum number of threads
+	 * @param queueSize maximum number of tasks waiting for a thread
+	 */
+	public ApiExecutor(final String name, int poolSize, int queueSize) {
+		super(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		allowCoreThreadTimeOut(true);
+		scheduler = Schedulers.from(this);
+	}
+
+	/**
+	 * @return an rx scheduler running on this pool
+	 */
+	public Scheduler scheduler() {
+		return scheduler;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		try {
+			super.execute(new TimedTask(command));
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	protected void beforeExecute(Thread t, Runnable r) {
+		super.beforeExecute(t, r);
+		if (r instanceof TimedTask) {
+			long wait = System.nanoTime() - ((TimedTask) r).queuedAt;
+			waitCount.incrementAndGet();
+			totalWaitNanos.addAndGet(wait);
+			long max = maxWaitNanos.get();
+			while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+				max = maxWaitNanos.get();
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the current queue depth, activity and wait times
+	 */
+	public Stats getStats() {
+		long n = waitCount.get();
+		return new Stats(getQueue().size(), getActiveCount(), getCompletedTaskCount(), rejectedCount.get(),
+				n > 0? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / n): 0,
+				TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+	}
+}
@@ -0,0 +1,167 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.mayaswell.marvelous.MarvelAPI.CharacterContainer;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
+import java.util.ArrayList;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * pulls the whole Marvel character catalog into the local cache. the first page tells us the total, and the rest
+ * are fetched a few at a time in parallel, then put back in order and written to the db as they arrive. The offset
+ * of the last page written is kept in shared preferences, so an interrupted sync picks up where it left off. The sync
+ * stops short if the next page won't fit within the cache's budgets, as writing it would only evict what we have
+ * just crawled.
+ */
+public class CatalogSync {
+
+	/**
+	 * progress of a sync, as the number of characters written so far out of the total in the catalog, and whether
+	 * it has stopped there because the cache is full
+	 */
+	public static class Progress {
+		public final int synced;
+		public final int total;
+		public final boolean full;
+
+		Progress(int synced, int total, boolean full) {
+			this.synced = synced;
+			this.total = total;
+			this.full = full;
+		}
+
+		public boolean isComplete() {
+			return synced >= total;
+		}
+	}
+
+	public static final int PAGE_SIZE = 100; // the most the api will give us at once
+	private static final String PREFERENCES = "catalogSync";
+	private static final String KEY_OFFSET = "committedOffset";
+
+	private final MarvelAPI marvelAPI;
+	private final MarvelDBHelper cachedDB;
+	private final SharedPreferences preferences;
+	private final int parallelism;
+
+	/**
+	 * @param marvelAPI
+	 * @param cachedDB
+	 * @param context
+	 * @param parallelism maximum number of pages in flight at once
+	 */
+	public CatalogSync(MarvelAPI marvelAPI, MarvelDBHelper cachedDB, Context context, int parallelism) {
+		this.marvelAPI = marvelAPI;
+		this.cachedDB = cachedDB;
+		this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+		this.parallelism = parallelism > 0? parallelism: 1;
+	}
+
+	/**
+	 * @return the offset of the end of the last page safely written to the db
+	 */
+	public int getCommittedOffset() {
+		return preferences.getInt(KEY_OFFSET, 0);
+	}
+
+	/**
+	 * start or resume the sync. nothing happens until this is subscribed to, and unsubscribing stops it, leaving
+	 * the committed offset at the last page written. it completes early, after a last progress that is full, if
+	 * the cache has no room for the next page. progress is observed on the main thread.
+	 * @return
+	 */
+	public Observable<Progress> sync() {
+		final int start = getCommittedOffset();
+		Log.d("CatalogSync", "starting sync from "+start);
+		return fetchPage(start)
+				.concatMap(new Func1<CharacterContainer, Observable<CharacterContainer>>() {
+					@Override
+					public Observable<CharacterContainer> call(CharacterContainer first) {
+						ArrayList<Integer> offsets = new ArrayList<>();
+						for (int offset = first.offset + PAGE_SIZE; offset < first.total; offset += PAGE_SIZE) {
+							offsets.add(offset);
+						}
+						return Observable.just(first).concatWith(
+								Observable.from(offsets)
+									.concatMapEager(new Func1<Integer, Observable<CharacterContainer>>() {
+										@Override
+										public Observable<CharacterContainer> call(Integer offset) {
+											return fetchPage(offset);
+										}
+									}, parallelism, parallelism));
+					}
+				})
+				.concatMap(new Func1<CharacterContainer, Observable<Progress>>() {
+					@Override
+					public Observable<Progress> call(CharacterContainer page) {
+						return commitPage(page);
+					}
+				})
+				.takeUntil(new Func1<Progress, Boolean>() {
+					@Override
+					public Boolean call(Progress progress) {
+						return progress.full;
+					}
+				})
+				.observeOn(AndroidSchedulers.mainThread());
+	}
+
+	/**
+	 * fetch one page of the catalog
+	 * @param offset
+	 * @return
+	 */
+	private Observable<CharacterContainer> fetchPage(int offset) {
+		return marvelAPI.getCharacters(new CharacterQuery(null, false, PAGE_SIZE, offset), Schedulers.immediate(),
+				Priority.BACKGROUND)
+				.map(new Func1<CharacterResponse, CharacterContainer>() {
+					@Override
+					public CharacterContainer call(CharacterResponse characterResponse) {
+						return characterResponse.data;
+					}
+				});
+	}
+
+	/**
+	 * write a page to the db, on its writer thread, in page order as we wait on each before the next, and once it is
+	 * committed move the committed offset on past it. a page that doesn't fit in the cache isn't written, and leaves
+	 * the committed offset where it is
+	 * @param page
+	 * @return
+	 */
+	private Observable<Progress> commitPage(final CharacterContainer page) {
+		return cachedDB.write(new MarvelDBHelper.Write<Boolean>() {
+					@Override
+					public Boolean apply(MarvelDBHelper helper) {
+						if (!helper.hasRoomFor(page.results.size())) {
+							return false;
+						}
+						helper.updateCharacters(page.results);
+						return true;
+					}
+				})
+				.map(new Func1<Boolean, Progress>() {
+					@Override
+					public Progress call(Boolean written) {
+						if (!written) {
+							Log.d("CatalogSync", "cache full, stopping at "+page.offset+" of "+page.total);
+							return new Progress(page.offset, page.total, true);
+						}
+						int committed = page.offset + page.count;
+						// a finished sync starts again from the top next time
+						preferences.edit().putInt(KEY_OFFSET, committed < page.total? committed: 0).apply();
+						Log.d("CatalogSync", "committed "+committed+" of "+page.total);
+						return new Progress(committed, page.total, false);
+					}
+				});
+	}
+}
@@ -5,47 +5,90 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.mayaswell.marvelous.MarvelAPI.Character;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 
 /**
  * RecyclerView adapter for a Marvel Character item
  * Created by dak on 10/23/2016.
  */
 public class CharacterAdapter  extends RecyclerView.Adapter<CharacterAdapter.ViewHolder>{
-	ArrayList<Character> dataSet = new ArrayList<Character>(); // data set of items in our RecyclerView
+	List<Character> dataSet = new ArrayList<Character>(); // data set of items in our RecyclerView, not copied
+	private final CharacterImages images;
+
+	/**
+	 * @param images thumbnails are loaded through this as rows are bound, or null for none. a detail prefetch for a
+	 *               row is cancelled through it when the row is recycled
+	 */
+	public CharacterAdapter(CharacterImages images) {
+		this.images = images;
+	}
 
 	public class ViewHolder  extends RecyclerView.ViewHolder {
 		public RelativeLayout parent;
 		protected TextView nameView;
 		protected TextView descView;
+		protected ImageView thumbView;
 		public ViewHolder(RelativeLayout v) {
 			super(v);
 			parent = v;
 			nameView = (TextView) v.findViewById(R.id.itemNameView);
 			descView = (TextView) v.findViewById(R.id.itemDescView);
+			thumbView = (ImageView) v.findViewById(R.id.itemThumbView);
 		}
 
 		public void setToCharacter(Character c) {
+			if (c == null) { // still loading in a lazy list, or gone from it since it was counted
+				nameView.setText("");
+				descView.setText("");
+				if (images != null) {
+					images.clearThumbnail(thumbView);
+				}
+				parent.setTag(null);
+				return;
+			}
 			nameView.setText(c.name);
 			descView.setText(c.description);
+			if (images != null) {
+				images.loadThumbnail(c, thumbView);
+			}
 			parent.setTag(c);
 			Log.d("CharAdapter", "setting "+c.name+c.description);
 		}
 	}
 
+	public Character getCharacter(int position) {
+		return dataSet.get(position);
+	}
+
 	public void clear() {
-		dataSet.clear();
-		notifyDataSetChanged();
+		setCharacters(new ArrayList<Character>());
 	}
 
-	public void addAll(Collection<Character> list) {
-		dataSet.clear();
-		dataSet.addAll(list);
+	/**
+	 * show the given list, as it is, rather than a copy, so a lazy list, like CharacterPages, is only read as rows
+	 * are bound, and rows of CharacterPages whose window is still loading are redrawn when it comes in. the adapter
+	 * doesn't change the list
+	 * @param list
+	 */
+	public void setCharacters(List<Character> list) {
+		if (dataSet instanceof CharacterPages) {
+			((CharacterPages) dataSet).setListener(null);
+		}
+		dataSet = list;
+		if (list instanceof CharacterPages) {
+			((CharacterPages) list).setListener(new CharacterPages.Listener() {
+				@Override
+				public void onLoaded(int from, int count) {
+					notifyItemRangeChanged(from, count);
+				}
+			});
+		}
 		notifyDataSetChanged();
 	}
 
@@ -65,9 +108,12 @@ public class CharacterAdapter  extends RecyclerView.Adapter<CharacterAdapter.Vie
 				try {
 					RelativeLayout rl = (RelativeLayout) v;
 					Character c = (Character) rl.getTag();
+					if (c == null) {
+						return;
+					}
 					MainActivity ml = (MainActivity) rl.getContext();
 					ml.showDetailView(c);
-					ml.updateCharacter(c);
+					ml.onCharacterViewed(c);
 				} catch (ClassCastException e) { // should not happen here
 
 				}
@@ -80,7 +126,25 @@ public class CharacterAdapter  extends RecyclerView.Adapter<CharacterAdapter.Vie
 	@Override
 	public void onBindViewHolder(CharacterAdapter.ViewHolder holder, int position) {
 		Log.d("CharAdapter", "binding at "+position);
-		holder.setToCharacter(dataSet.get(position));
+		Character c = dataSet.get(position);
+		holder.setToCharacter(c);
+	}
+
+	/**
+	 * a row going back to the pool stops loading its thumbnail, and gives up its bitmap. a prefetch of its detail
+	 * image still under way is cancelled, as it has gone off screen without being opened
+	 * @param holder
+	 */
+	@Override
+	public void onViewRecycled(CharacterAdapter.ViewHolder holder) {
+		if (images != null) {
+			images.clearThumbnail(holder.thumbView);
+			Character c = (Character) holder.parent.getTag();
+			if (c != null) {
+				images.cancelDetailPrefetch(c);
+			}
+		}
+		super.onViewRecycled(holder);
 	}
 
 	@Override
@@ -0,0 +1,232 @@
+package com.mayaswell.marvelous;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import java.util.Arrays;
+
+/**
+ * a bounded, in memory map of characters by marvel id, that sits in front of the db. Keys stay as primitive ints:
+ * the hash table is an int array of entry numbers, probed linearly, and the entries themselves live in parallel
+ * arrays, threaded on a doubly linked list from most to least recently used, so a full cache drops its least
+ * recently used entry to make room. Nothing is allocated after construction, bar the characters themselves.
+ * Removal shifts later entries of a probe run back, so there are no tombstones to build up.
+ */
+public class CharacterCache {
+
+	private static final int NONE = -1;
+
+	private final int capacity;
+	private final int mask;
+	private final int[] table; // entry number for each slot, or NONE
+
+	private final int[] ids;
+	private final Character[] characters;
+	private final int[] newer;
+	private final int[] older;
+	private int newest = NONE;
+	private int oldest = NONE;
+	private int size = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity most characters that we hold
+	 */
+	public CharacterCache(int capacity) {
+		this.capacity = capacity > 0? capacity: 1;
+		int slots = Integer.highestOneBit(this.capacity * 2 - 1) << 1; // load factor of at most a half
+		mask = slots - 1;
+		table = new int[slots];
+		Arrays.fill(table, NONE);
+		ids = new int[this.capacity];
+		characters = new Character[this.capacity];
+		newer = new int[this.capacity];
+		older = new int[this.capacity];
+	}
+
+	/**
+	 * @param id
+	 * @return the character with the given id, now the most recently used, or null if we don't hold it
+	 */
+	public synchronized Character get(int id) {
+		int slot = find(id);
+		if (slot == NONE) {
+			misses++;
+			return null;
+		}
+		hits++;
+		int e = table[slot];
+		touch(e);
+		return characters[e];
+	}
+
+	/**
+	 * hold the given character, as the most recently used, in place of any we already had with the same id
+	 * @param character
+	 */
+	public synchronized void put(Character character) {
+		int slot = find(character.id);
+		if (slot != NONE) {
+			int e = table[slot];
+			characters[e] = character;
+			touch(e);
+			return;
+		}
+		int e;
+		if (size < capacity) {
+			e = size++;
+		} else {
+			e = oldest;
+			removeSlot(find(ids[e]));
+		}
+		ids[e] = character.id;
+		characters[e] = character;
+		link(e);
+		slot = home(character.id);
+		while (table[slot] != NONE) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = e;
+	}
+
+	/**
+	 * drop the character with the given id, if we hold it
+	 * @param id
+	 */
+	public synchronized void remove(int id) {
+		int slot = find(id);
+		if (slot == NONE) {
+			return;
+		}
+		int e = table[slot];
+		removeSlot(slot);
+		// fill the hole in the entry arrays with the last entry, so they stay packed
+		int last = --size;
+		if (e != last) {
+			table[find(ids[last])] = e;
+			ids[e] = ids[last];
+			characters[e] = characters[last];
+			newer[e] = newer[last];
+			older[e] = older[last];
+			relink(e);
+		}
+		characters[last] = null;
+	}
+
+	/**
+	 * drop everything, but keep the counts
+	 */
+	public synchronized void clear() {
+		Arrays.fill(table, NONE);
+		Arrays.fill(characters, null);
+		newest = NONE;
+		oldest = NONE;
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @param id
+	 * @return the slot of the given id, or NONE
+	 */
+	private int find(int id) {
+		for (int slot = home(id);; slot = (slot + 1) & mask) {
+			int e = table[slot];
+			if (e == NONE) {
+				return NONE;
+			}
+			if (ids[e] == id) {
+				return slot;
+			}
+		}
+	}
+
+	private int home(int id) {
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * empty a slot in the table, and shift back any later entries of its probe run that could sit in it, so that
+	 * every entry stays reachable from its home slot. the entry itself is unlinked from the lru list
+	 * @param slot
+	 */
+	private void removeSlot(int slot) {
+		unlink(table[slot]);
+		int hole = slot;
+		for (int next = (hole + 1) & mask; table[next] != NONE; next = (next + 1) & mask) {
+			int home = home(ids[table[next]]);
+			// the entry at next can move to the hole if its home isn't cyclically in (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+		}
+		table[hole] = NONE;
+	}
+
+	private void touch(int e) {
+		if (e != newest) {
+			unlink(e);
+			link(e);
+		}
+	}
+
+	/**
+	 * link an entry in at the newest end of the lru list
+	 * @param e
+	 */
+	private void link(int e) {
+		newer[e] = NONE;
+		older[e] = newest;
+		if (newest != NONE) {
+			newer[newest] = e;
+		}
+		newest = e;
+		if (oldest == NONE) {
+			oldest = e;
+		}
+	}
+
+	private void unlink(int e) {
+		if (newer[e] != NONE) {
+			older[newer[e]] = older[e];
+		} else {
+			newest = older[e];
+		}
+		if (older[e] != NONE) {
+			newer[older[e]] = newer[e];
+		} else {
+			oldest = newer[e];
+		}
+	}
+
+	/**
+	 * point the neighbours of an entry that has just moved to e at its new place
+	 * @param e
+	 */
+	private void relink(int e) {
+		if (newer[e] != NONE) {
+			older[newer[e]] = e;
+		} else {
+			newest = e;
+		}
+		if (older[e] != NONE) {
+			newer[older[e]] = e;
+		} else {
+			oldest = e;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.util.DisplayMetrics;
+import android.widget.ImageView;
+
+import com.bumptech.glide.DrawableRequestBuilder;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.FutureTarget;
+import com.bumptech.glide.request.target.Target;
+import com.mayaswell.marvelous.MarvelAPI.Aspect;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.ImageSize;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * picks and loads the character images. The variant for the detail view is the smallest that covers the width it
+ * will have on this screen, worked out once from the display metrics, so we can ask for it before the view is laid
+ * out. Detail images of the rows on screen are prefetched into Glide's disk cache once a list settles, so the bytes
+ * are already local when the detail view opens, and a prefetch still under way is cancelled if its row is scrolled
+ * away. List thumbnails are the smallest square variant that covers the
+ * thumbnail view, decoded down to its exact size.
+ */
+public class CharacterImages {
+
+	private static final int MAX_PREFETCHED = 128;
+
+	private final Context context;
+	private final ImageSize detailSize;
+	private final ImageSize thumbnailSize;
+	private final int thumbnailPx;
+	private final LinkedHashMap<String, FutureTarget<File>> prefetched =
+			new LinkedHashMap<String, FutureTarget<File>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, FutureTarget<File>> eldest) {
+					return size() > MAX_PREFETCHED;
+				}
+			};
+
+	/**
+	 * @param context
+	 */
+	public CharacterImages(Context context) {
+		this.context = context.getApplicationContext();
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		int margin = context.getResources().getDimensionPixelSize(R.dimen.activity_horizontal_margin);
+		detailSize = ImageSize.covering(Aspect.PORTRAIT, metrics.widthPixels - 2 * margin, 0);
+		thumbnailPx = context.getResources().getDimensionPixelSize(R.dimen.thumbnailSize);
+		thumbnailSize = ImageSize.covering(Aspect.STANDARD, thumbnailPx, thumbnailPx);
+	}
+
+	/**
+	 * @return the image variant that we use on the detail view
+	 */
+	public ImageSize getDetailSize() {
+		return detailSize;
+	}
+
+	/**
+	 * @return the width and height in pixels of a list thumbnail
+	 */
+	public int getThumbnailPx() {
+		return thumbnailPx;
+	}
+
+	/**
+	 * the glide request for a list thumbnail, decoded down to the thumbnail size, which draws from a bitmap in the
+	 * pool if one of the right size is free. a preload has to make exactly the same request to be of any use
+	 * @param context
+	 * @param c
+	 * @return
+	 */
+	public DrawableRequestBuilder<String> thumbnailRequest(Context context, Character c) {
+		return Glide.with(context)
+				.load(c.thumbnail.getURL(thumbnailSize))
+				.override(thumbnailPx, thumbnailPx)
+				.centerCrop()
+				.diskCacheStrategy(DiskCacheStrategy.RESULT);
+	}
+
+	/**
+	 * load the thumbnail of a character into a list row, cancelling whatever the view was loading before
+	 * @param c
+	 * @param view
+	 */
+	public void loadThumbnail(Character c, ImageView view) {
+		if (c.thumbnail == null) {
+			clearThumbnail(view);
+			return;
+		}
+		thumbnailRequest(view.getContext(), c).into(view);
+	}
+
+	/**
+	 * cancel any load into a list row, and let go of its bitmap, eg when the row is recycled
+	 * @param view
+	 */
+	public void clearThumbnail(ImageView view) {
+		Glide.clear(view);
+		view.setImageDrawable(null);
+	}
+
+	/**
+	 * load the detail image of a character into the given view. the source is kept in the disk cache, which is
+	 * where a prefetch will have put it
+	 * @param c
+	 * @param view
+	 */
+	public void loadDetail(Character c, ImageView view) {
+		if (c.thumbnail == null) {
+			Glide.clear(view);
+			view.setImageDrawable(null);
+			return;
+		}
+		Glide.with(view.getContext())
+				.load(c.thumbnail.getURL(detailSize))
+				.diskCacheStrategy(DiskCacheStrategy.ALL)
+				.into(view);
+	}
+
+	/**
+	 * fetch the detail image of a character into the disk cache, if we haven't already asked for it
+	 * @param c
+	 */
+	public void prefetchDetail(Character c) {
+		if (c.thumbnail == null) {
+			return;
+		}
+		String url = c.thumbnail.getURL(detailSize);
+		synchronized (prefetched) {
+			if (prefetched.containsKey(url)) {
+				return;
+			}
+			prefetched.put(url, Glide.with(context)
+					.load(url)
+					.downloadOnly(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL));
+		}
+	}
+
+	/**
+	 * cancel the prefetch of the detail image of a character, if it is still under way, so it can be asked for
+	 * again later. one that has finished is left alone
+	 * @param c
+	 */
+	public void cancelDetailPrefetch(Character c) {
+		if (c.thumbnail == null) {
+			return;
+		}
+		String url = c.thumbnail.getURL(detailSize);
+		FutureTarget<File> target;
+		synchronized (prefetched) {
+			target = prefetched.get(url);
+			if (target == null || target.isDone()) {
+				return;
+			}
+			prefetched.remove(url);
+		}
+		Glide.clear(target);
+	}
+}
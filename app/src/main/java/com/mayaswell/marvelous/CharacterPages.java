@@ -0,0 +1,205 @@
+package com.mayaswell.marvelous;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action1;
+
+/**
+ * a read only list of characters that are only read in when they're asked for, a fixed size window of rows at a
+ * time, eg as a list view scrolls over them. The order is taken the once, as a list of ids, and each window is read
+ * by the ids at its positions, so rows that move or go from the source later don't shift the windows; a character
+ * that has gone is just null. Only a few windows are kept, the least recently used going first, so past the ids,
+ * neither the memory nor the time it takes to make one grows with the number of rows behind it. Given a scheduler
+ * to load on, a window that isn't in yet is read there, rather than in get(), which returns null for its rows in
+ * the meantime, and the listener hears when it comes in. Meant for the one thread, the ui thread in practice, and
+ * the loads are observed on it.
+ */
+public class CharacterPages extends AbstractList<Character> {
+
+	/**
+	 * where the rows come from
+	 */
+	public interface Source {
+		/**
+		 * @return the ids of the rows, in order
+		 */
+		int[] ids();
+
+		/**
+		 * @param ids
+		 * @return those of the characters with the given ids that are still there, in any order
+		 */
+		List<Character> characters(int[] ids);
+	}
+
+	/**
+	 * hears of windows coming in, eg to redraw their rows
+	 */
+	public interface Listener {
+		void onLoaded(int from, int count);
+	}
+
+	private final Source source;
+	private final int windowSize;
+	private final int maxWindows;
+	private int[] ids = null;
+	private int loads = 0;
+	private final LinkedHashMap<Integer, Character[]> windows;
+	private final Scheduler loadScheduler;
+	private final Scheduler observeScheduler;
+	private final HashSet<Integer> loading = new HashSet<>();
+	private Listener listener = null;
+
+	/**
+	 * @param source
+	 * @param windowSize rows read in at a time
+	 * @param maxWindows most windows that we keep
+	 */
+	public CharacterPages(Source source, int windowSize, final int maxWindows) {
+		this(source, windowSize, maxWindows, null, null);
+	}
+
+	/**
+	 * @param source
+	 * @param windowSize rows read in at a time
+	 * @param maxWindows most windows that we keep
+	 * @param loadScheduler where windows are read in, or null to read them in get()
+	 * @param observeScheduler the thread that the list is used on, where loaded windows are handed back
+	 */
+	public CharacterPages(Source source, int windowSize, final int maxWindows, Scheduler loadScheduler,
+			Scheduler observeScheduler) {
+		this.source = source;
+		this.loadScheduler = loadScheduler;
+		this.observeScheduler = observeScheduler;
+		this.windowSize = windowSize > 0? windowSize: 1;
+		this.maxWindows = maxWindows > 0? maxWindows: 1;
+		windows = new LinkedHashMap<Integer, Character[]>(this.maxWindows + 1, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Character[]> eldest) {
+				return size() > CharacterPages.this.maxWindows;
+			}
+		};
+	}
+
+	/**
+	 * @param index
+	 * @return the character at index, or null if it went from the source after the ids were taken, or its window
+	 * 	is still loading
+	 */
+	@Override
+	public Character get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("index "+index+", size "+size());
+		}
+		int w = index / windowSize;
+		Character[] window = windows.get(w);
+		if (window == null) {
+			if (loadScheduler != null) {
+				startLoading(w);
+				return null;
+			}
+			window = load(w);
+			windows.put(w, window);
+			loads++;
+		}
+		return window[index - w * windowSize];
+	}
+
+	/**
+	 * take the ids, and read the first window, on the calling thread, eg on a worker before the list is handed to
+	 * the ui, so that the first rows are there straight away
+	 */
+	public void preload() {
+		if (size() > 0 && !windows.containsKey(0)) {
+			windows.put(0, load(0));
+			loads++;
+		}
+	}
+
+	/**
+	 * @param listener told of windows as they come in, or null
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * read a window in on the load scheduler, unless it is already under way. a failed load is forgotten, so that
+	 * the next get() of one of its rows tries again
+	 * @param w
+	 */
+	private void startLoading(final int w) {
+		if (!loading.add(w)) {
+			return;
+		}
+		Observable.fromCallable(new Callable<Character[]>() {
+					@Override
+					public Character[] call() throws Exception {
+						return load(w);
+					}
+				})
+				.subscribeOn(loadScheduler)
+				.observeOn(observeScheduler)
+				.subscribe(new Action1<Character[]>() {
+					@Override
+					public void call(Character[] window) {
+						loading.remove(w);
+						windows.put(w, window);
+						loads++;
+						if (listener != null) {
+							listener.onLoaded(w * windowSize, window.length);
+						}
+					}
+				}, new Action1<Throwable>() {
+					@Override
+					public void call(Throwable e) {
+						loading.remove(w);
+					}
+				});
+	}
+
+	@Override
+	public int size() {
+		if (ids == null) {
+			ids = source.ids();
+		}
+		return ids.length;
+	}
+
+	/**
+	 * read in a window, and put its characters in the places of their ids
+	 * @param w
+	 * @return
+	 */
+	private Character[] load(int w) {
+		int from = w * windowSize;
+		int[] wanted = Arrays.copyOfRange(ids, from, Math.min(from + windowSize, ids.length));
+		Character[] window = new Character[wanted.length];
+		for (Character c: source.characters(wanted)) {
+			for (int i = 0; i < wanted.length; i++) {
+				if (wanted[i] == c.id) {
+					window[i] = c;
+					break;
+				}
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * @return the number of windows read in so far
+	 */
+	public int getLoads() {
+		return loads;
+	}
+}
@@ -0,0 +1,67 @@
+package com.mayaswell.marvelous;
+
+import java.util.Locale;
+
+/**
+ * normalized form of a query on the characters endpoint of the Marvel API: (name, startsWith, limit, offset).
+ * The time dependent auth parameters aren't part of it, so two queries that will get the same answer from the
+ * api compare equal, and have the same key.
+ */
+public class CharacterQuery {
+	final String name;
+	final boolean startsWith;
+	final int limit;
+	final int offset;
+
+	/**
+	 * @param name name, or start of name to search on, or null for no name filter
+	 * @param startsWith true for a nameStartsWith search, false for an exact name
+	 * @param limit page size, or <= 0 for the api default
+	 * @param offset page offset, or <= 0 for the start
+	 */
+	public CharacterQuery(String name, boolean startsWith, int limit, int offset) {
+		if (name != null) {
+			name = name.trim();
+			if (startsWith) { // the api's prefix match ignores case
+				name = name.toLowerCase(Locale.US);
+			}
+		}
+		this.name = name;
+		this.startsWith = name != null && startsWith;
+		this.limit = limit > 0? limit: 0;
+		this.offset = offset > 0? offset: 0;
+	}
+
+	/**
+	 * @return a string that uniquely identifies this query
+	 */
+	public String key() {
+		return (name == null? "*": (startsWith? "^": "=") + name) + "|" + limit + "|" + offset;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CharacterQuery)) {
+			return false;
+		}
+		CharacterQuery q = (CharacterQuery) o;
+		return startsWith == q.startsWith && limit == q.limit && offset == q.offset
+				&& (name == null? q.name == null: name.equals(q.name));
+	}
+
+	@Override
+	public int hashCode() {
+		int h = name != null? name.hashCode(): 0;
+		h = 31 * h + (startsWith? 1: 0);
+		h = 31 * h + limit;
+		return 31 * h + offset;
+	}
+
+	@Override
+	public String toString() {
+		return key();
+	}
+}
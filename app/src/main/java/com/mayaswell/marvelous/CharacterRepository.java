@@ -0,0 +1,161 @@
+package com.mayaswell.marvelous;
+
+import android.util.Log;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.MarvelDBHelper.CachedCharacters;
+import com.mayaswell.marvelous.MarvelDBHelper.QueryResult;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * offline first character lookups, on top of the api and the db cache. Whatever the cache holds for a lookup is
+ * served straight away. If it is the api's answer to the query, kept from before, and is within the freshness ttl,
+ * going by the timestamp column, that's all. Otherwise, if it is older than that, or it is only the cached names that
+ * happen to match a query we haven't made before, the api is asked again in the background, and a second, updated
+ * result follows only if what came back differs from what we served. Every page that comes back from the api is written to the db in one go, so all of a search's results are
+ * there offline, and fresh again, the next time. The answer itself is kept too, so a search that we have made before
+ * is answered with exactly what the api said, rather than whatever cached names happen to match.
+ */
+public class CharacterRepository {
+
+	/**
+	 * a list of characters for a lookup, and whether it came from the cache or the api
+	 */
+	public static class Result {
+		public final ArrayList<Character> characters;
+		public final boolean cached;
+
+		Result(ArrayList<Character> characters, boolean cached) {
+			this.characters = characters;
+			this.cached = cached;
+		}
+	}
+
+	private static final int MAX_CACHED_MATCHES = 20; // the api's default page
+
+	private final MarvelAPI marvelAPI;
+	private final MarvelDBHelper cachedDB;
+	private final long ttlMs;
+
+	/**
+	 * @param marvelAPI
+	 * @param cachedDB
+	 * @param ttlMs how long a cached character is fresh enough to serve without asking the api again
+	 */
+	public CharacterRepository(MarvelAPI marvelAPI, MarvelDBHelper cachedDB, long ttlMs) {
+		this.marvelAPI = marvelAPI;
+		this.cachedDB = cachedDB;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * look up the characters whose name starts with name, observed on the main thread. there is a first result from
+	 * the cache if it has anything, then one from the api if the cache had nothing, or wasn't a fresh answer and has
+	 * changed. if the cache had something, a failed revalidation is only logged.
+	 * @param name
+	 * @return
+	 */
+	public Observable<Result> getCharacterMatching(final String name) {
+		final String key = new CharacterQuery(name, true, -1, -1).key();
+		return cachedDB.read(new Callable<CachedCharacters>() {
+					@Override
+					public CachedCharacters call() throws Exception {
+						QueryResult answer = cachedDB.getQueryResult(key);
+						if (answer != null) {
+							return answer;
+						}
+						return cachedDB.getCharactersMatching(name, MAX_CACHED_MATCHES);
+					}
+				})
+				.concatMap(new Func1<CachedCharacters, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(CachedCharacters cached) {
+						// no matches is only an answer if the api gave it
+						if (cached.characters.isEmpty() && !(cached instanceof QueryResult)) {
+							return fetch(name, key, null);
+						}
+						Observable<Result> served = Observable.just(new Result(cached.characters, true));
+						// names that match in the cache may be only some of the api's, or not its first, however fresh
+						if (cached instanceof QueryResult && System.currentTimeMillis() - cached.oldest < ttlMs) {
+							Log.d("CharacterRepository", "fresh cache for '"+name+"'");
+							return served;
+						}
+						Log.d("CharacterRepository", (cached instanceof QueryResult? "stale": "unanswered")+" cache for '"
+								+name+"', revalidating");
+						return served.concatWith(fetch(name, key, cached.characters)
+								.onErrorResumeNext(new Func1<Throwable, Observable<Result>>() {
+									@Override
+									public Observable<Result> call(Throwable e) {
+										Log.d("CharacterRepository", "revalidation failed, "+e.getMessage());
+										return Observable.empty();
+									}
+								}));
+					}
+				})
+				.observeOn(AndroidSchedulers.mainThread());
+	}
+
+	/**
+	 * ask the api, write the answer to the db, and compare it with what we served from the cache, if anything
+	 * @param name
+	 * @param key the key of the query, that the answer is kept under
+	 * @param served the cached characters already served, or null
+	 * @return the api result, or nothing if it is the same as what we served
+	 */
+	private Observable<Result> fetch(String name, final String key, final ArrayList<Character> served) {
+		return marvelAPI.getCharacters(new CharacterQuery(name, true, -1, -1), Schedulers.io(), Priority.INTERACTIVE)
+				.concatMap(new Func1<CharacterResponse, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(CharacterResponse characterResponse) {
+						final ArrayList<Character> results = characterResponse.data.results;
+						return cachedDB.writeQueryResult(key, characterResponse.data.total, results)
+								.concatMap(new Func1<Integer, Observable<Result>>() {
+									@Override
+									public Observable<Result> call(Integer added) {
+										if (served != null && sameAsShown(results, served)) {
+											return Observable.empty();
+										}
+										return Observable.just(new Result(results, false));
+									}
+								});
+					}
+				});
+	}
+
+	/**
+	 * whether two lists look the same: the same characters in the same order, with the same names, descriptions and
+	 * thumbnails. that's all the db keeps, so a list read back from there can look the same as the api's, though its
+	 * characters don't equal the api's, which have their resource uris and related resource summaries as well
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static boolean sameAsShown(List<Character> a, List<Character> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			Character ca = a.get(i);
+			Character cb = b.get(i);
+			if (ca.id != cb.id || !same(ca.name, cb.name) || !same(ca.description, cb.description)
+					|| !same(ca.thumbnail, cb.thumbnail)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == null? b == null: a.equals(b);
+	}
+}
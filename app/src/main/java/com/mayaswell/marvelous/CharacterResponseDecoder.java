@@ -0,0 +1,162 @@
+package com.mayaswell.marvelous;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.CharacterContainer;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * single pass streaming decoder for a character response from the Marvel API. reads straight off a character
+ * stream (ie the okhttp response body) with a gson JsonReader, rather than pulling the whole body into a string
+ * and parsing it twice. An error response is recognised from its first fields, parts of a character that we don't
+ * model (stories, urls, the inline lists of comics, series and events ...) are skipped without being built, and each
+ * character is handed to an optional listener as soon as it has been read from the results array. Individual
+ * characters are read with the shared adapters in MarvelCodec.
+ */
+public class CharacterResponseDecoder {
+
+	/**
+	 * receives each character as it comes off the results array
+	 */
+	public interface Listener {
+		void onCharacter(Character character);
+	}
+
+	private final Listener listener;
+
+	public CharacterResponseDecoder() {
+		this(null);
+	}
+
+	public CharacterResponseDecoder(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * decode a full character response from the given reader. the reader is not closed.
+	 * @param in
+	 * @return the decoded response
+	 * @throws IOException on a read error, or on malformed json
+	 * @throws RuntimeException if the server has sent us an error response
+	 */
+	@NonNull
+	public CharacterResponse decode(Reader in) throws IOException {
+		return readResponse(new JsonReader(in));
+	}
+
+	/**
+	 * decode a full character response from the given json reader
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	CharacterResponse readResponse(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			throw new RuntimeException("Unexpected "+reader.peek()+" processing JSON");
+		}
+		CharacterResponse response = new CharacterResponse();
+		String errorCode = null;
+		String errorMessage = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (MarvelCodec.nullValue(reader)) {
+				continue;
+			}
+			switch (field) {
+				case "code":
+					// an int on success, but a string code on most errors
+					if (reader.peek() == JsonToken.NUMBER) {
+						response.code = reader.nextInt();
+						errorCode = Integer.toString(response.code);
+					} else {
+						errorCode = reader.nextString();
+					}
+					break;
+				case "message":
+					errorMessage = reader.nextString();
+					break;
+				case "status":
+					response.status = reader.nextString();
+					break;
+				case "copyright":
+					response.copyright = reader.nextString();
+					break;
+				case "attributionText":
+					response.attributionText = reader.nextString();
+					break;
+				case "attributionHTML":
+					response.attributionHTML = reader.nextString();
+					break;
+				case "data":
+					response.data = readContainer(reader);
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+			// the error shape leads with code and message, so we can bail without reading any further
+			if (errorCode != null && errorMessage != null) {
+				throw new RuntimeException("Error status from server: "+errorMessage);
+			}
+		}
+		reader.endObject();
+		return response;
+	}
+
+	/**
+	 * read the data container, streaming out the results as we go
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	CharacterContainer readContainer(JsonReader reader) throws IOException {
+		CharacterContainer container = new CharacterContainer();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (MarvelCodec.nullValue(reader)) {
+				continue;
+			}
+			switch (field) {
+				case "offset":
+					container.offset = reader.nextInt();
+					break;
+				case "limit":
+					container.limit = reader.nextInt();
+					break;
+				case "total":
+					container.total = reader.nextInt();
+					break;
+				case "count":
+					container.count = reader.nextInt();
+					container.results.ensureCapacity(container.count);
+					break;
+				case "results":
+					reader.beginArray();
+					while (reader.hasNext()) {
+						Character c = MarvelCodec.CHARACTER.read(reader);
+						container.results.add(c);
+						if (listener != null) {
+							listener.onCharacter(c);
+						}
+					}
+					reader.endArray();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+		return container;
+	}
+}
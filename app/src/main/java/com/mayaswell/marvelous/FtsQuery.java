@@ -0,0 +1,66 @@
+package com.mayaswell.marvelous;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * builds the MATCH expressions for the full text index from whatever the user typed. The text is split up the way
+ * sqlite's simple tokenizer splits what it indexes, so the terms are nothing but lower case letters and digits, and
+ * none of what the user types can be taken as query syntax (the fts operators are all upper case). Each term matches
+ * any token that it is a prefix of. Terms aren't quoted, as fts4 won't take a column filter on a quoted phrase.
+ */
+public class FtsQuery {
+
+	private static final int MAX_TERMS = 8;
+
+	/**
+	 * split text into lower case terms, as the simple tokenizer would: runs of ascii letters and digits, and anything
+	 * past ascii, everything else being a separator
+	 * @param text
+	 * @return
+	 */
+	static List<String> terms(String text) {
+		ArrayList<String> terms = new ArrayList<>();
+		if (text == null) {
+			return terms;
+		}
+		StringBuilder term = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char ch = i < text.length()? text.charAt(i): ' ';
+			if (ch >= 128 || (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'z')) {
+				term.append(ch);
+			} else if (ch >= 'A' && ch <= 'Z') {
+				term.append((char) (ch - 'A' + 'a'));
+			} else if (term.length() > 0) {
+				if (terms.size() < MAX_TERMS) {
+					terms.add(term.toString());
+				}
+				term.setLength(0);
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * @param text
+	 * @param column the column to match in, or null for any of them
+	 * @return a match expression for rows where every term is the prefix of some token, or null if there are no terms
+	 */
+	public static String prefixMatch(String text, String column) {
+		List<String> terms = terms(text);
+		if (terms.isEmpty()) {
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		for (String term: terms) {
+			if (match.length() > 0) {
+				match.append(' ');
+			}
+			if (column != null) {
+				match.append(column).append(':');
+			}
+			match.append(term).append('*');
+		}
+		return match.toString();
+	}
+}
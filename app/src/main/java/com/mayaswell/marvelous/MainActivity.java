@@ -20,22 +20,29 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.ViewAnimator;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
-import com.bumptech.glide.Glide;
+import com.jakewharton.rxbinding.widget.RxTextView;
 import com.mayaswell.marvelous.MarvelAPI.Character;
-import com.mayaswell.marvelous.MarvelAPI.ImageSize;
 
+import rx.Observable;
 import rx.Subscriber;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 
 public class MainActivity extends AppCompatActivity {
 
 	private MarvelAPI marvelAPI;
 	private MarvelDBHelper cachedDB;
+	private CharacterRepository characterRepository;
 	private CharacterAdapter characterAdapter;
+	private CharacterImages characterImages;
 	private RecyclerView cacheListView;
 	private LinearLayoutManager characterListLayoutManager;
 	private ViewAnimator viewAnimator;
@@ -44,14 +51,28 @@ public class MainActivity extends AppCompatActivity {
 	private Button goButton;
 	private ScrollView detailView;
 	private TextView statusView;
+	private TextView listLabelText;
 	private String currentSearchText = "";
 	private TextView detailNameView;
 	private ImageView detailImageView;
 	private TextView detailDescriptionView;
+	private TextView detailRelatedView;
 	private List<Character> cachedRequests = null;
 	private int maxCharactersCached;
+	private int listWindowSize;
+	private int listMaxWindows;
 	private ProgressBar progressBar;
 
+	private static ApiExecutor apiExecutor = null;
+	private static QuotaGovernor quotaGovernor = null;
+	private static MarvelDBHelper sharedDB = null;
+	private Subscription catalogSyncSubscription = null;
+	private Subscription searchSubscription = null;
+	private Subscription relatedSubscription = null;
+	private Subscription typeaheadSubscription = null;
+	private Subscription cachedListSubscription = null;
+	private RelatedResources relatedResources;
+
 	private Properties properties;
 	private String apiKey;
 	private String privateKey;
@@ -80,7 +101,10 @@ public class MainActivity extends AppCompatActivity {
 				showProgress(true);
 				clearError();
 				currentSearchText = nameView.getText().toString();
-				marvelAPI.getCharacterMatching(currentSearchText).subscribe(new Subscriber<ArrayList<Character>>() {
+				if (searchSubscription != null) { // a new search abandons the last one
+					searchSubscription.unsubscribe();
+				}
+				searchSubscription = characterRepository.getCharacterMatching(currentSearchText).subscribe(new Subscriber<CharacterRepository.Result>() {
 					@Override
 					public void onCompleted() {
 						showProgress(false);
@@ -95,26 +119,32 @@ public class MainActivity extends AppCompatActivity {
 					}
 
 					@Override
-					public void onNext(ArrayList<Character> characters) {
-						onCharacterListReceived(characters);
+					public void onNext(CharacterRepository.Result result) {
+						showProgress(false); // anything from the cache is good to show, a revalidation may follow
+						onCharacterListReceived(result.characters);
 					}
 				});
 			}
 		});
 		statusView = (TextView) findViewById(R.id.statusView);
+		listLabelText = (TextView) findViewById(R.id.listLabelText);
 		progressBar = (ProgressBar) findViewById(R.id.progressBar);
 
-		characterAdapter = new CharacterAdapter();
+		characterImages = new CharacterImages(this);
+		characterAdapter = new CharacterAdapter(characterImages);
 		cacheListView = (RecyclerView) findViewById(R.id.cacheListView);
 		characterListLayoutManager = new LinearLayoutManager(this);
 		cacheListView.setLayoutManager(characterListLayoutManager);
 		cacheListView.setAdapter(characterAdapter);
+		cacheListView.addOnScrollListener(new ThumbnailPreloader(this, characterListLayoutManager, characterAdapter,
+				characterImages, getResources().getInteger(R.integer.thumbnailPreloadRows)));
 
 		// componentts of detail view
 		detailView = (ScrollView) findViewById(R.id.detailView);
 		detailNameView = (TextView)findViewById(R.id.detailNameView);
 		detailImageView = (ImageView) findViewById(R.id.detailImageView);
 		detailDescriptionView = (TextView) findViewById(R.id.detailDescriptionView);
+		detailRelatedView = (TextView) findViewById(R.id.detailRelatedView);
 
 		properties = getProperties("marvel.properties");
 		if (properties != null) {
@@ -126,17 +156,57 @@ public class MainActivity extends AppCompatActivity {
 			privateKey = getResources().getString(R.string.private_key);
 		}
 		// other bits that we might want
-		marvelAPI = new MarvelAPI( getResources().getString(R.string.marvel_url_base), apiKey, privateKey );
+		marvelAPI = new MarvelAPI( getResources().getString(R.string.marvel_url_base), apiKey, privateKey,
+				new File(getCacheDir(), "marvel-http"), 1024L * getResources().getInteger(R.integer.httpCacheSizeKb));
+		MarvelHttp.prewarm(getResources().getString(R.string.marvel_url_base));
+		marvelAPI.setIoExecutor(getApiExecutor());
+		marvelAPI.setQuotaGovernor(getQuotaGovernor());
+		relatedResources = new RelatedResources(marvelAPI,
+				getResources().getInteger(R.integer.relatedParallelism), getResources().getInteger(R.integer.relatedMaxResults),
+				60L * 1000 * getResources().getInteger(R.integer.cacheFreshnessMinutes));
 		maxCharactersCached = getResources().getInteger(R.integer.maxCharactersCached);
-		cachedDB = new MarvelDBHelper(maxCharactersCached, this);
+		listWindowSize = getResources().getInteger(R.integer.listWindowSize);
+		listMaxWindows = getResources().getInteger(R.integer.listMaxWindows);
+		cachedDB = getCachedDB();
+		characterRepository = new CharacterRepository(marvelAPI, cachedDB,
+				60L * 1000 * getResources().getInteger(R.integer.cacheFreshnessMinutes));
+		if (getResources().getBoolean(R.bool.syncCatalogOnStart)) {
+			startCatalogSync();
+		}
+		if (getResources().getBoolean(R.bool.typeaheadSearch)) {
+			startTypeahead();
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (searchSubscription != null) {
+			searchSubscription.unsubscribe();
+			searchSubscription = null;
+		}
+		if (catalogSyncSubscription != null) {
+			catalogSyncSubscription.unsubscribe();
+			catalogSyncSubscription = null;
+		}
+		if (relatedSubscription != null) {
+			relatedSubscription.unsubscribe();
+			relatedSubscription = null;
+		}
+		if (typeaheadSubscription != null) {
+			typeaheadSubscription.unsubscribe();
+			typeaheadSubscription = null;
+		}
+		if (cachedListSubscription != null) {
+			cachedListSubscription.unsubscribe();
+			cachedListSubscription = null;
+		}
+		super.onDestroy();
 	}
 
 	@Override
 	protected void onStart() {
 		super.onStart();
-		cachedRequests = cachedDB.getCharacters(maxCharactersCached);
-		Log.d("MainActivity", "found "+cachedRequests.size()+ " cached requests");
-		characterAdapter.addAll(cachedRequests);
+		refreshCachedList();
 	}
 
 	@Override
@@ -155,7 +225,9 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	/**
-	 * take appropriate actions for the arrival of a character list. Currently only the first character is shown
+	 * take appropriate actions for the arrival of a character list. Currently only the first character is shown. A
+	 * list from the api has already been written to the db, so whichever it came from we only need to note that the
+	 * character was looked at
 	 * @param characters
 	 */
 	private void onCharacterListReceived(ArrayList<Character> characters) {
@@ -164,7 +236,7 @@ public class MainActivity extends AppCompatActivity {
 		} else {
 			Character c = characters.get(0);
 			showDetailView(c);
-			updateCharacter(c);
+			onCharacterViewed(c);
 		}
 	}
 
@@ -180,12 +252,55 @@ public class MainActivity extends AppCompatActivity {
 			imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
 		}
 
-		Context context = detailImageView.getContext();
-		Glide.with(context).load(c.thumbnail.getURL(ImageSize.PORTRAIT_XL)).into(detailImageView);
+		characterImages.loadDetail(c, detailImageView);
 		Log.d("MainActivity", "got character "+c.name+", "+c.description);
 		detailNameView.setText(c.name);
 		detailDescriptionView.setText(c.description);
 		viewAnimator.setDisplayedChild(viewAnimator.indexOfChild(detailView));
+		showRelated(c);
+	}
+
+	/**
+	 * fill in the comics and series of a character on the detail view, a page at a time as they arrive
+	 * @param c
+	 */
+	private void showRelated(Character c) {
+		if (relatedSubscription != null) { // a new detail view abandons the last one
+			relatedSubscription.unsubscribe();
+		}
+		detailRelatedView.setText("");
+		final StringBuilder comics = new StringBuilder();
+		final StringBuilder series = new StringBuilder();
+		final int[] totals = { 0, 0 };
+		relatedSubscription = relatedResources.get(c, RelatedResources.Kind.COMICS, RelatedResources.Kind.SERIES)
+				.subscribe(new Subscriber<RelatedResources.RelatedPage>() {
+			@Override
+			public void onCompleted() {
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				Log.d("MainActivity", "failed getting related resources, "+e.getMessage());
+			}
+
+			@Override
+			public void onNext(RelatedResources.RelatedPage page) {
+				boolean isComics = page.kind == RelatedResources.Kind.COMICS;
+				StringBuilder titles = isComics? comics: series;
+				totals[isComics? 0: 1] = page.total;
+				for (MarvelAPI.Resource r: page.resources) {
+					titles.append(r.title).append('\n');
+				}
+				StringBuilder text = new StringBuilder();
+				if (totals[0] > 0) {
+					text.append(getString(R.string.comicsLabel)).append(" (").append(totals[0]).append(")\n").append(comics);
+				}
+				if (totals[1] > 0) {
+					text.append(getString(R.string.seriesLabel)).append(" (").append(totals[1]).append(")\n").append(series);
+				}
+				detailRelatedView.setText(text);
+			}
+		});
 	}
 
 	/**
@@ -220,15 +335,121 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	/**
-	 * refresh the database cache for the given character
-	 * @param c
+	 * show the most recently used entries of the database cache in the list. they're only read in as the list gets
+	 * to them, so this costs the same however many there are
+	 */
+	private void refreshCachedList() {
+		showCachedList(cachedDB.characterPages(maxCharactersCached, listWindowSize, listMaxWindows,
+				AndroidSchedulers.mainThread()));
+	}
+
+	/**
+	 * show the list of cached characters once it has been read, off the main thread, in place of any still to come
+	 * @param pages
 	 */
-	public void updateCharacter(Character c) {
-		if (cachedDB.updateCharacter(c)) {
-			cachedDB.trimToNewest();
-			cachedRequests = cachedDB.getCharacters(maxCharactersCached);
-			characterAdapter.addAll(cachedRequests);
+	private void showCachedList(Observable<CharacterPages> pages) {
+		if (cachedListSubscription != null) {
+			cachedListSubscription.unsubscribe();
 		}
+		cachedListSubscription = pages
+				.observeOn(AndroidSchedulers.mainThread())
+				.subscribe(new Subscriber<CharacterPages>() {
+			@Override
+			public void onCompleted() {
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				Log.d("MainActivity", "reading cached list failed, "+e.getMessage());
+			}
+
+			@Override
+			public void onNext(CharacterPages characterPages) {
+				cachedRequests = characterPages;
+				Log.d("MainActivity", "found "+cachedRequests.size()+ " cached requests, memory cache "+
+						cachedDB.getMemoryCache().getHits()+" hits, "+cachedDB.getMemoryCache().getMisses()+" misses");
+				characterAdapter.setCharacters(cachedRequests);
+			}
+		});
+	}
+
+	/**
+	 * note a use of the given character in the database cache, adding it if it isn't held, and show it at the head
+	 * of the list, once that's written
+	 * @param c
+	 */
+	public void onCharacterViewed(Character c) {
+		showCachedList(cachedDB.viewCharacter(c)
+				.concatMap(new Func1<Boolean, Observable<CharacterPages>>() {
+					@Override
+					public Observable<CharacterPages> call(Boolean added) {
+						return cachedDB.characterPages(maxCharactersCached, listWindowSize, listMaxWindows,
+								AndroidSchedulers.mainThread());
+					}
+				}));
+	}
+
+	/**
+	 * pull the full character catalog into the local cache, in the background, picking up from where any earlier
+	 * sync left off
+	 */
+	private void startCatalogSync() {
+		CatalogSync sync = new CatalogSync(marvelAPI, cachedDB, this, getResources().getInteger(R.integer.catalogSyncParallelism));
+		catalogSyncSubscription = sync.sync().subscribe(new Subscriber<CatalogSync.Progress>() {
+			@Override
+			public void onCompleted() {
+				Log.d("MainActivity", "catalog sync complete");
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				Log.d("MainActivity", "catalog sync failed, "+e.getMessage());
+			}
+
+			@Override
+			public void onNext(CatalogSync.Progress progress) {
+				statusView.setText(progress.isComplete() || progress.full? "": "Syncing "+progress.synced+"/"+progress.total);
+			}
+		});
+	}
+
+	/**
+	 * search as the user types in the name box, showing the matches in place of the previous searches, which come
+	 * back when the text is too short to look up. the go button still does a full search.
+	 */
+	private void startTypeahead() {
+		Typeahead typeahead = new Typeahead(marvelAPI, cachedDB,
+				60L * 1000 * getResources().getInteger(R.integer.cacheFreshnessMinutes),
+				getResources().getInteger(R.integer.typeaheadMinLength), getResources().getInteger(R.integer.typeaheadLimit));
+		typeaheadSubscription = typeahead.search(RxTextView.textChanges(nameView),
+				getResources().getInteger(R.integer.typeaheadDebounceMs), Schedulers.computation())
+				.subscribe(new Subscriber<Typeahead.Result>() {
+			@Override
+			public void onCompleted() {
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				Log.d("MainActivity", "typeahead failed, "+e.getMessage());
+			}
+
+			@Override
+			public void onNext(Typeahead.Result result) {
+				if (result.error != null) {
+					statusView.setText(result.error.getMessage());
+				} else if (result.characters == null) {
+					clearError();
+					listLabelText.setText(R.string.listLabel);
+					if (cachedRequests != null) {
+						characterAdapter.setCharacters(cachedRequests);
+					}
+				} else {
+					clearError();
+					listLabelText.setText(R.string.matchesLabel);
+					characterAdapter.setCharacters(result.characters);
+				}
+			}
+		});
 	}
 
 	/**
@@ -243,6 +464,47 @@ public class MainActivity extends AppCompatActivity {
 		}
 	}
 
+	/**
+	 * the bounded pool for api calls, shared by every instance of the activity
+	 * @return
+	 */
+	private ApiExecutor getApiExecutor() {
+		if (apiExecutor == null) {
+			apiExecutor = new ApiExecutor("marvel-io",
+					getResources().getInteger(R.integer.apiIoPoolSize), getResources().getInteger(R.integer.apiIoQueueSize));
+		}
+		return apiExecutor;
+	}
+
+	/**
+	 * the db cache, which keeps its connection open, shared by every instance of the activity
+	 * @return
+	 */
+	private MarvelDBHelper getCachedDB() {
+		if (sharedDB == null) {
+			sharedDB = new MarvelDBHelper(getResources().getInteger(R.integer.maxCharactersStored),
+					getResources().getInteger(R.integer.maxCacheSizeKb) * 1024L,
+					getResources().getInteger(R.integer.maxCharactersInMemory),
+					getResources().getInteger(R.integer.dbReaderThreads), this);
+		}
+		return sharedDB;
+	}
+
+	/**
+	 * the governor for our daily api call quota, shared by every instance of the activity
+	 * @return
+	 */
+	private QuotaGovernor getQuotaGovernor() {
+		if (quotaGovernor == null) {
+			quotaGovernor = new QuotaGovernor(
+					getResources().getInteger(R.integer.dailyCallBudget), getResources().getInteger(R.integer.callBurst),
+					getResources().getInteger(R.integer.callRefillPerMinute) / 60.0,
+					getResources().getInteger(R.integer.backgroundCallPercent) / 100.0,
+					new QuotaPreferences(this));
+		}
+		return quotaGovernor;
+	}
+
 	/**
 	 * load the given properties file from assets
 	 * @param FileName
@@ -3,53 +3,120 @@ package com.mayaswell.marvelous;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import org.w3c.dom.CharacterData;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import okhttp3.Cache;
+import okhttp3.Call;
 import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
 import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Action0;
 import rx.functions.Func1;
 import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
 
 /**
  * handle the ins and outs of the marvel API.
- * parsing is via GSON, http handling via okhttp, asynchronous processing and callbacks via rx.
+ * parsing is via a streaming GSON reader and the shared adapters in MarvelCodec, http handling and response caching
+ * via okhttp, asynchronous processing and callbacks via rx.
  */
 public class MarvelAPI {
 
+	public enum Aspect {
+		PORTRAIT,
+		STANDARD,
+		LANDSCAPE
+	}
+
+	/**
+	 * the image variants that the api serves, with their pixel sizes. portrait_large isn't one of the documented
+	 * variants, so it has no size, and is never picked by covering()
+	 */
 	public enum ImageSize {
-		PORTRAIT_S("portrait_small"),
-		PORTRAIT_M("portrait_medium"),
-		PORTRAIT_L("portrait_large"),
-		PORTRAIT_XL("portrait_xlarge"),
-		STANDARD_S("standard_small"),
-		STANDARD_M("standard_medium"),
-		STANDARD_L("standard_large"),
-		STANDARD_XL("standard_xlarge"),
-		LANDSCAPE_S("landscape_small"),
-		LANDSCAPE_M("landscape_medium"),
-		LANDSCAPE_L("landscape_large"),
-		LANDSCAPE_XL("landscape_xlarge");
+		PORTRAIT_S("portrait_small", Aspect.PORTRAIT, 50, 75),
+		PORTRAIT_M("portrait_medium", Aspect.PORTRAIT, 100, 150),
+		PORTRAIT_L("portrait_large", Aspect.PORTRAIT, 0, 0),
+		PORTRAIT_XL("portrait_xlarge", Aspect.PORTRAIT, 150, 225),
+		PORTRAIT_FANTASTIC("portrait_fantastic", Aspect.PORTRAIT, 168, 252),
+		PORTRAIT_INCREDIBLE("portrait_incredible", Aspect.PORTRAIT, 216, 324),
+		PORTRAIT_UNCANNY("portrait_uncanny", Aspect.PORTRAIT, 300, 450),
+		STANDARD_S("standard_small", Aspect.STANDARD, 65, 45),
+		STANDARD_M("standard_medium", Aspect.STANDARD, 100, 100),
+		STANDARD_L("standard_large", Aspect.STANDARD, 140, 140),
+		STANDARD_AMAZING("standard_amazing", Aspect.STANDARD, 180, 180),
+		STANDARD_XL("standard_xlarge", Aspect.STANDARD, 200, 200),
+		STANDARD_FANTASTIC("standard_fantastic", Aspect.STANDARD, 250, 250),
+		LANDSCAPE_S("landscape_small", Aspect.LANDSCAPE, 120, 90),
+		LANDSCAPE_M("landscape_medium", Aspect.LANDSCAPE, 175, 130),
+		LANDSCAPE_L("landscape_large", Aspect.LANDSCAPE, 190, 140),
+		LANDSCAPE_AMAZING("landscape_amazing", Aspect.LANDSCAPE, 250, 156),
+		LANDSCAPE_XL("landscape_xlarge", Aspect.LANDSCAPE, 270, 200),
+		LANDSCAPE_INCREDIBLE("landscape_incredible", Aspect.LANDSCAPE, 464, 261);
 
 		private final String prefix;
+		public final Aspect aspect;
+		public final int width;
+		public final int height;
 
-		ImageSize(String prefix) {
+		ImageSize(String prefix, Aspect aspect, int width, int height) {
 			this.prefix = prefix;
+			this.aspect = aspect;
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * the smallest variant of the given aspect that covers a view of the given pixel size, or the biggest
+		 * there is if none of them covers it
+		 * @param aspect
+		 * @param width target width in pixels
+		 * @param height target height in pixels, or 0 if only the width matters
+		 * @return
+		 */
+		public static ImageSize covering(Aspect aspect, int width, int height) {
+			ImageSize best = null;
+			ImageSize biggest = null;
+			for (ImageSize size: values()) {
+				if (size.aspect != aspect || size.width == 0) {
+					continue;
+				}
+				int area = size.width * size.height;
+				if (biggest == null || area > biggest.width * biggest.height) {
+					biggest = size;
+				}
+				if (size.width >= width && size.height >= height
+						&& (best == null || area < best.width * best.height)) {
+					best = size;
+				}
+			}
+			return best != null? best: biggest;
 		}
 	}
 
@@ -57,6 +124,7 @@ public class MarvelAPI {
 	private final String apiKey;
 	private final String privateKey;
 	private final OkHttpClient client;
+	private final MarvelRequestSigner signer;
 
 	/**
 	 * class representing the main wrapper of a successful character response from the Marvel API
@@ -97,6 +165,71 @@ public class MarvelAPI {
 		String description;
 		String resourceURI;
 		Image thumbnail;
+		ResourceList comics; // summaries of related resources, only present on characters fresh from the api
+		ResourceList series;
+		ResourceList events;
+
+		/**
+		 * equality on the fields that we keep, leaving out the related resource summaries
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Character)) {
+				return false;
+			}
+			Character c = (Character) o;
+			return id == c.id
+					&& same(name, c.name)
+					&& same(description, c.description)
+					&& same(resourceURI, c.resourceURI)
+					&& same(thumbnail, c.thumbnail);
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+	}
+
+	/**
+	 * class representing the summary of a list of related resources (comics, series, events) of a character. We
+	 * keep the count and where to find them, and leave the inline items, which are only a partial list in any case
+	 */
+	public static class ResourceList {
+		int available;
+		String collectionURI;
+	}
+
+	/**
+	 * class representing a related resource (a comic, series or event) in the response from the Marvel API
+	 */
+	public static class Resource {
+		public Resource() {
+			id = 0;
+			title = "";
+			description = "";
+			resourceURI = "";
+			thumbnail = null;
+		}
+		int id;
+		String title;
+		String description;
+		String resourceURI;
+		Image thumbnail;
+	}
+
+	/**
+	 * class representing the main container of a successful related resource response from the Marvel API
+	 */
+	public static class ResourceContainer {
+		int offset;
+		int limit;
+		int total;
+		int count;
+		ArrayList<Resource> results = new ArrayList<>();
 	}
 
 	/**
@@ -135,6 +268,33 @@ public class MarvelAPI {
 		String getURL(ImageSize size) {
 			return path + "/" + size.prefix + "." + extension;
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Image)) {
+				return false;
+			}
+			Image i = (Image) o;
+			return same(path, i.path) && same(extension, i.extension);
+		}
+
+		@Override
+		public int hashCode() {
+			return path != null? path.hashCode(): 0;
+		}
+	}
+
+	/**
+	 * null safe equality for model fields
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static boolean same(Object a, Object b) {
+		return a == null? b == null: a.equals(b);
 	}
 
 	/**
@@ -146,82 +306,377 @@ public class MarvelAPI {
 	}
 
 	/**
-	 *  class constructor
+	 * a call that the server has answered with an unsuccessful http code
+	 */
+	public static class ApiException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public final int code;
+
+		public ApiException(int code) {
+			super("Bad response code "+code);
+			this.code = code;
+		}
+
+		/**
+		 * @return true for failures that may well succeed on a retry: rate limiting, and server side errors. The
+		 * marvel api uses 409 for bad or missing parameters, so that isn't worth retrying.
+		 */
+		public boolean isTransient() {
+			return code == HTTP_TOO_MANY_REQUESTS || code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+	}
+
+	/**
+	 * snapshot of the hit, miss and revalidation counts of the http response cache
+	 */
+	public static class CacheStats {
+		public final int requests;
+		public final int hits;
+		public final int misses;
+		public final int revalidations;
+
+		CacheStats(int requests, int hits, int revalidations) {
+			this.requests = requests;
+			this.hits = hits;
+			this.misses = requests - hits;
+			this.revalidations = revalidations;
+		}
+
+		@Override
+		public String toString() {
+			return "requests "+requests+", hits "+hits+", misses "+misses+", revalidations "+revalidations;
+		}
+	}
+
+	private final Cache cache;
+	private final HashMap<Object, Observable<?>> inFlight = new HashMap<>(); // keyed on query, or url for resources
+	private volatile ApiExecutor ioExecutor = defaultIoExecutor();
+	private volatile Scheduler computeScheduler = null;
+	private volatile QuotaGovernor quotaGovernor = defaultQuotaGovernor();
+	private final Random random = new Random();
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static final long RATE_LIMIT_HOLD_MS = 30000;
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_BASE_DELAY_MS = 500;
+	private final AtomicInteger revalidationCount = new AtomicInteger(0);
+
+	/**
+	 *  class constructor, on the shared http client
 	 * @param urlBase
 	 * @param apiKey
 	 * @param privateKey
 	 */
 	public MarvelAPI(final String urlBase, final String apiKey, final String privateKey)
+	{
+		this(urlBase, apiKey, privateKey, MarvelHttp.client());
+	}
+
+	/**
+	 *  class constructor, on the shared http client, which is given an on disk http response cache of the given size,
+	 *  in the given directory, if it isn't already set up. unchanged results then come back from the server as a 304
+	 *  with no body, via an If-None-Match on the stored etag.
+	 * @param urlBase
+	 * @param apiKey
+	 * @param privateKey
+	 * @param cacheDir directory for the response cache, or null for no cache
+	 * @param cacheSize maximum size of the response cache in bytes
+	 */
+	public MarvelAPI(final String urlBase, final String apiKey, final String privateKey, File cacheDir, long cacheSize)
+	{
+		this(urlBase, apiKey, privateKey, MarvelHttp.client(cacheDir, cacheSize));
+	}
+
+	/**
+	 *  class constructor, building on the given http client. our calls share its connection pool, dispatcher and
+	 *  response cache.
+	 * @param urlBase
+	 * @param apiKey
+	 * @param privateKey
+	 * @param baseClient
+	 */
+	public MarvelAPI(final String urlBase, final String apiKey, final String privateKey, OkHttpClient baseClient)
 	{
 		this.urlBase = urlBase;
 		this.apiKey = apiKey;
 		this.privateKey = privateKey;
-		client = new OkHttpClient();
+		signer = new MarvelRequestSigner(urlBase, apiKey, privateKey);
+		cache = baseClient.cache();
+		client = baseClient.newBuilder()
+				.addNetworkInterceptor(signingInterceptor)
+				.addNetworkInterceptor(revalidationCounter)
+				.build();
+	}
+
+	/**
+	 * the time dependent ts and hash auth parameters are added as the request goes onto the network. requests
+	 * as the response cache sees them are then the same from one call to the next, and the cache key holds.
+	 */
+	private final Interceptor signingInterceptor = new Interceptor() {
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			return chain.proceed(signRequest(chain.request()));
+		}
+	};
+
+	/**
+	 * counts revalidations, ie conditional requests that the server answers with a 304. the response cache makes
+	 * those itself, with an If-None-Match on the ETag header that the api sends with each result
+	 */
+	private final Interceptor revalidationCounter = new Interceptor() {
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Response response = chain.proceed(chain.request());
+			if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				revalidationCount.incrementAndGet();
+			}
+			return response;
+		}
+	};
+
+	/**
+	 * the pool that api calls are made on, by default one bounded pool shared between all api instances
+	 */
+	private static ApiExecutor defaultIoExecutor = null;
+	private static final int DEFAULT_IO_POOL_SIZE = 4;
+	private static final int DEFAULT_IO_QUEUE_SIZE = 64;
+
+	private static synchronized ApiExecutor defaultIoExecutor() {
+		if (defaultIoExecutor == null) {
+			defaultIoExecutor = new ApiExecutor("marvel-io", DEFAULT_IO_POOL_SIZE, DEFAULT_IO_QUEUE_SIZE);
+		}
+		return defaultIoExecutor;
+	}
+
+	/**
+	 * set the bounded pool that api calls are made on
+	 * @param ioExecutor
+	 */
+	public void setIoExecutor(ApiExecutor ioExecutor) {
+		this.ioExecutor = ioExecutor;
+	}
+
+	/**
+	 * @return the pool that api calls are made on
+	 */
+	public ApiExecutor getIoExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * set a separate scheduler for decoding responses. if this is set, response bodies are read in full into memory
+	 * on the io pool and decoded on this one, which frees the io thread sooner at the cost of holding each whole body
+	 * at once. if it is null, the default, bodies are decoded as they stream in on the io pool, as the app uses them
+	 * @param computeScheduler
+	 */
+	public void setComputeScheduler(Scheduler computeScheduler) {
+		this.computeScheduler = computeScheduler;
+	}
+
+	/**
+	 * the governor for the daily call quota, by default one shared between all api instances, as the quota is
+	 * per api key
+	 */
+	private static QuotaGovernor defaultQuotaGovernor = null;
+	private static final int DEFAULT_DAILY_BUDGET = 3000;
+	private static final int DEFAULT_BURST = 10;
+	private static final double DEFAULT_REFILL_PER_SECOND = 1;
+	private static final double DEFAULT_BACKGROUND_SHARE = 0.5;
+
+	private static synchronized QuotaGovernor defaultQuotaGovernor() {
+		if (defaultQuotaGovernor == null) {
+			defaultQuotaGovernor = new QuotaGovernor(
+					DEFAULT_DAILY_BUDGET, DEFAULT_BURST, DEFAULT_REFILL_PER_SECOND, DEFAULT_BACKGROUND_SHARE);
+		}
+		return defaultQuotaGovernor;
+	}
+
+	/**
+	 * set the governor for the daily call quota
+	 * @param quotaGovernor
+	 */
+	public void setQuotaGovernor(QuotaGovernor quotaGovernor) {
+		this.quotaGovernor = quotaGovernor;
+	}
+
+	/**
+	 * @return the current budget counters for the call quota
+	 */
+	public QuotaGovernor.Counters getQuotaCounters() {
+		return quotaGovernor.getCounters();
+	}
+
+	/**
+	 * @return current counts for the http response cache, or null if this api has no cache
+	 */
+	public CacheStats getCacheStats() {
+		if (cache == null) {
+			return null;
+		}
+		return new CacheStats(cache.requestCount(), cache.hitCount(), revalidationCount.get());
 	}
 
 	/**
-	 * create the basic observable of an okhttp response
+	 * create the basic observable of an okhttp response, made on the io pool. the call waits on a token from the
+	 * quota governor at the given priority before it goes out, without holding an io thread while it waits, and
+	 * the token is given back if the response comes from the http cache without reaching the server.
+	 * unsubscribing cancels the wait or the underlying call, which stops any read of the body that is under way.
+	 * a response that isn't passed on, for whatever reason, is closed here; once passed on, closing its body is
+	 * the responsibility of the subscriber.
 	 * @param okRequest
+	 * @param priority
 	 * @return
 	 */
 	@NonNull
-	private Observable<Response> createObservable(final Request okRequest) {
+	private Observable<Response> createObservable(final Request okRequest, final Priority priority) {
+		final QuotaGovernor governor = quotaGovernor;
+		return governor.acquire(priority, Schedulers.computation())
+				.concatMap(new Func1<Priority, Observable<Response>>() {
+					@Override
+					public Observable<Response> call(Priority p) {
+						return execute(okRequest, governor, p).subscribeOn(ioExecutor.scheduler());
+					}
+				});
+	}
+
+	/**
+	 * the observable of an okhttp call, made with a token already taken from the given governor
+	 * @param okRequest
+	 * @param governor
+	 * @param priority
+	 * @return
+	 */
+	@NonNull
+	private Observable<Response> execute(final Request okRequest, final QuotaGovernor governor, final Priority priority) {
 		return Observable.create(new Observable.OnSubscribe<Response>() {
 
 			@Override
 			public void call(Subscriber<? super Response> subscriber) {
 				Log.d("MarvelAPI", "created observervable on "+okRequest.toString()+" on "+Thread.currentThread().getId());
-				try {
-					Response response = client.newCall(okRequest).execute();
-					subscriber.onNext(response);
-					if (!response.isSuccessful()) {
-						subscriber.onError(new Exception("error"));
-					} else {
-						subscriber.onCompleted();
+				final Call call = client.newCall(okRequest);
+				subscriber.add(Subscriptions.create(new Action0() {
+					@Override
+					public void call() {
+						call.cancel();
 					}
+				}));
+				if (subscriber.isUnsubscribed()) {
+					governor.refund(priority);
+					return;
+				}
+				Response response;
+				try {
+					response = call.execute();
 				} catch (IOException e) {
+					governor.refund(priority); // no response from the server to charge for
 					subscriber.onError(e);
+					return;
+				}
+				if (response.networkResponse() == null) { // answered from the http cache
+					governor.refund(priority);
+				}
+				if (!response.isSuccessful()) {
+					response.body().close();
+					if (response.code() == HTTP_TOO_MANY_REQUESTS) {
+						governor.onRateLimited(RATE_LIMIT_HOLD_MS);
+					}
+					subscriber.onError(new ApiException(response.code()));
+				} else if (subscriber.isUnsubscribed()) {
+					response.body().close();
+				} else {
+					subscriber.onNext(response);
+					subscriber.onCompleted();
 				}
 			}
 		});
 	}
 
 	/**
-	 * do the basic mapping of an okhttp response into a string ... we're assuming the amount of data
-	 * is reasonable (which it is for the marvel api), so .string() is a reasonable way to grab all data
+	 * check an okhttp response for a successful code. non-200 responses are thrown back as an ApiException
+	 * @param response
+	 */
+	private static void checkResponseCode(Response response) {
+		int responseCode = response.code();
+		Log.d("MarvelAPI", "got response, code "+responseCode);
+		if (responseCode != HttpURLConnection.HTTP_OK) {
+			throw new ApiException(responseCode);
+		}
+	}
+
+	/**
+	 * decode the body of an okhttp response in a single pass straight off the body stream. if the server sends
+	 * an ErrorResponse, the decoder recognises it and we throw it as an error. the body is always closed.
+	 * @param response
+	 * @param decoder
+	 * @return
+	 */
+	@NonNull
+	private static CharacterResponse decodeResponseBody(Response response, CharacterResponseDecoder decoder) {
+		ResponseBody body = response.body();
+		try {
+			checkResponseCode(response);
+			return decoder.decode(body.charStream());
+		} catch (IOException e) {
+			throw new RuntimeException("IO Exception getting response body"+e.getMessage());
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * pull the whole of a response body off the network, without decoding it, so that decoding can happen on
+	 * another thread without going back to the socket. the network body is closed straight away, and the response
+	 * passed on carries an in memory copy, so nothing is left open if it never reaches the decoder
 	 */
-	private Func1<Response, String> responseBodyMapper = new Func1<Response, String>() {
+	private Func1<Response, Response> responseBodyBuffer = new Func1<Response, Response>() {
 		@Override
-		public String call(Response response) {
-			int responseCode = response.code();
-			Log.d("MarvelAPI", "got response, code "+responseCode);
-			if (responseCode != HttpURLConnection.HTTP_OK) {
-				throw new RuntimeException("Bad response code "+responseCode);
-			}
-			String responseBody = "";
+		public Response call(Response response) {
+			ResponseBody body = response.body();
+			Buffer buffer = new Buffer();
 			try {
-				responseBody = response.body().string();
-				response.body().close();
+				checkResponseCode(response);
+				buffer.writeAll(body.source());
 			} catch (IOException e) {
-				response.body().close();
 				throw new RuntimeException("IO Exception getting response body"+e.getMessage());
-			} catch (Exception e) {
-				response.body().close();
-				throw new RuntimeException("Unexpected Exception getting response body "+e.getClass().toString());
+			} finally {
+				body.close();
 			}
+			return response.newBuilder()
+					.body(ResponseBody.create(body.contentType(), buffer.size(), buffer))
+					.build();
+		}
+	};
 
-			// we try to convert the response body to an ErrorResponse message. if we can, we throw this as an error
-			// otherwise, we let the chaing continue
-			Gson gson = new GsonBuilder().create();
-			ErrorResponse errorResponse = gson.fromJson(responseBody, ErrorResponse.class);
-			if (errorResponse != null && errorResponse.code != null && errorResponse.message != null) {
-				throw new RuntimeException("Error status from server: "+errorResponse.message);
-			}
-			return responseBody;
+	/**
+	 * map an okhttp response straight to a decoded character response
+	 */
+	private Func1<Response, CharacterResponse> responseBodyDecoder = new Func1<Response, CharacterResponse>() {
+		@Override
+		public CharacterResponse call(Response response) {
+			return decodeResponseBody(response, new CharacterResponseDecoder());
 		}
 
 	};
 
+	/**
+	 * map an okhttp response straight to a decoded related resource container, closing the body
+	 */
+	private Func1<Response, ResourceContainer> resourceBodyDecoder = new Func1<Response, ResourceContainer>() {
+		@Override
+		public ResourceContainer call(Response response) {
+			ResponseBody body = response.body();
+			try {
+				checkResponseCode(response);
+				return MarvelCodec.readResourceResponse(new JsonReader(body.charStream()));
+			} catch (IOException e) {
+				throw new RuntimeException("IO Exception getting response body"+e.getMessage());
+			} finally {
+				body.close();
+			}
+		}
+	};
+
 	/**
 	 * main api call to return a character response. if this completes, a character response will be Observable,
 	 * otherwise an error response will come back via a RuntimeException and be viewed in the observers Error handler
@@ -229,14 +684,189 @@ public class MarvelAPI {
 	 * @return
 	 */
 	protected Observable<CharacterResponse> getCharacters(Request okRequest) {
-		Observable<Response> observable = createObservable(okRequest);
+		return fetchCharacters(okRequest, Priority.INTERACTIVE)
+				.observeOn(AndroidSchedulers.mainThread());
+	}
+
+	/**
+	 * the fetch and decode of a character response, without any choice of observing thread. transient failures
+	 * are retried with backoff.
+	 * @param okRequest
+	 * @param priority
+	 * @return
+	 */
+	private Observable<CharacterResponse> fetchCharacters(Request okRequest, Priority priority) {
+		return fetch(okRequest, priority, responseBodyDecoder);
+	}
+
+	/**
+	 * the fetch and decode of any api response, with the given decoder, as for fetchCharacters
+	 * @param okRequest
+	 * @param priority
+	 * @param decoder
+	 * @param <T>
+	 * @return
+	 */
+	private <T> Observable<T> fetch(Request okRequest, Priority priority, Func1<Response, T> decoder) {
+		Observable<Response> observable = createObservable(okRequest, priority);
+		Scheduler compute = computeScheduler;
+		if (compute == null) {
+			return observable
+					.map(decoder)
+					.retryWhen(retryWithBackoff);
+		}
 		return observable
-				.subscribeOn(Schedulers.newThread())
-				.map(responseBodyMapper)
-				.map(new Func1<String, CharacterResponse>() {
+				.map(responseBodyBuffer)
+				.observeOn(compute)
+				.map(decoder)
+				.retryWhen(retryWithBackoff);
+	}
+
+	/**
+	 * retry transient failures (rate limiting, server errors, io errors other than cancellation), backing off
+	 * exponentially with some random jitter, up to MAX_RETRIES times
+	 */
+	private final Func1<Observable<? extends Throwable>, Observable<?>> retryWithBackoff =
+			new Func1<Observable<? extends Throwable>, Observable<?>>() {
+		@Override
+		public Observable<?> call(Observable<? extends Throwable> errors) {
+			final AtomicInteger attempts = new AtomicInteger(0);
+			return errors.flatMap(new Func1<Throwable, Observable<?>>() {
+				@Override
+				public Observable<?> call(Throwable e) {
+					int attempt = attempts.incrementAndGet();
+					if (attempt > MAX_RETRIES || !isTransient(e)) {
+						return Observable.error(e);
+					}
+					long delay = RETRY_BASE_DELAY_MS << (attempt - 1);
+					delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+					Log.d("MarvelAPI", "retry "+attempt+" in "+delay+"ms after "+e.getMessage());
+					return Observable.timer(delay, TimeUnit.MILLISECONDS);
+				}
+			});
+		}
+	};
+
+	/**
+	 * @param e
+	 * @return true if the given failure is worth a retry
+	 */
+	private static boolean isTransient(Throwable e) {
+		if (e instanceof ApiException) {
+			return ((ApiException) e).isTransient();
+		}
+		return e instanceof IOException && !"Canceled".equals(e.getMessage());
+	}
+
+	/**
+	 * api call to return a character response for a query, coalescing identical queries that are in flight at
+	 * the same time: all subscribers to the same query share a single http call and a single decoded response,
+	 * which should be treated as read only.
+	 * @param query
+	 * @return
+	 */
+	protected Observable<CharacterResponse> getCharacters(final CharacterQuery query) {
+		return getCharacters(query, AndroidSchedulers.mainThread(), Priority.INTERACTIVE);
+	}
+
+	/**
+	 * api call to return a character response for a query, observed on the given scheduler, coalescing identical
+	 * queries in flight, as for getCharacters(CharacterQuery)
+	 * @param query
+	 * @param observer
+	 * @param priority quota priority of the call, if it has to go out on the network
+	 * @return
+	 */
+	protected Observable<CharacterResponse> getCharacters(final CharacterQuery query, Scheduler observer, Priority priority) {
+		return coalesce(query, characterRequest(query), priority, responseBodyDecoder).observeOn(observer);
+	}
+
+	/**
+	 * the one shared fetch for the given key, joining a fetch already in flight for it, or making a new one, which
+	 * is forgotten again as soon as it finishes or loses all its subscribers. the fetch replays its result, so a
+	 * subscriber that joins after the result is out, but before the fetch is forgotten, still gets it
+	 * @param key
+	 * @param okRequest
+	 * @param priority
+	 * @param decoder
+	 * @param <T>
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> Observable<T> coalesce(final Object key, Request okRequest, Priority priority, Func1<Response, T> decoder) {
+		Observable<T> shared;
+		synchronized (inFlight) {
+			shared = (Observable<T>) inFlight.get(key);
+			if (shared == null) {
+				final AtomicReference<Observable<T>> self = new AtomicReference<>();
+				Action0 release = new Action0() {
 					@Override
-					public CharacterResponse call(String responseBody) {
-						return parseCharacterResponse(responseBody);
+					public void call() {
+						synchronized (inFlight) {
+							if (inFlight.get(key) == self.get()) {
+								inFlight.remove(key);
+							}
+						}
+					}
+				};
+				shared = fetch(okRequest, priority, decoder)
+						.doOnTerminate(release)
+						.doOnUnsubscribe(release)
+						.replay(1)
+						.refCount();
+				self.set(shared);
+				inFlight.put(key, shared);
+			} else {
+				Log.d("MarvelAPI", "joining request in flight for "+key);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * api call to return a page of the resources of one kind (comics, series, events) related to a character,
+	 * observed on the given scheduler. Identical pages in flight at the same time share the one http call.
+	 * @param characterId
+	 * @param kind path of the resource endpoint, ie "comics", "series" or "events"
+	 * @param limit
+	 * @param offset
+	 * @param observer
+	 * @param priority quota priority of the call, if it has to go out on the network
+	 * @return
+	 */
+	protected Observable<ResourceContainer> getResources(int characterId, String kind, int limit, int offset,
+			Scheduler observer, Priority priority) {
+		Request request = resourceRequest(characterId, kind, limit, offset);
+		return coalesce(request.url(), request, priority, resourceBodyDecoder).observeOn(observer);
+	}
+
+	/**
+	 * api call that streams out each character of a response as soon as it is decoded, rather than waiting on
+	 * the whole page
+	 * @param okRequest
+	 * @return
+	 */
+	protected Observable<Character> streamCharacters(Request okRequest) {
+		Observable<Response> observable = createObservable(okRequest, Priority.INTERACTIVE);
+		return observable
+				.concatMap(new Func1<Response, Observable<Character>>() {
+					@Override
+					public Observable<Character> call(final Response response) {
+						return Observable.create(new Observable.OnSubscribe<Character>() {
+							@Override
+							public void call(final Subscriber<? super Character> subscriber) {
+								decodeResponseBody(response, new CharacterResponseDecoder(new CharacterResponseDecoder.Listener() {
+									@Override
+									public void onCharacter(Character character) {
+										if (subscriber.isUnsubscribed()) { // stop decoding for a subscriber that's gone
+											throw new CancellationException("unsubscribed");
+										}
+										subscriber.onNext(character);
+									}
+								}));
+								subscriber.onCompleted();
+							}
+						});
 					}
 				})
 				.observeOn(AndroidSchedulers.mainThread());
@@ -247,7 +877,7 @@ public class MarvelAPI {
 	 * @return
 	 */
 	public Observable<CharacterResponse> getCharacters() {
-		return getCharacters(characterRequest(-1, -1, null, false));
+		return getCharacters(new CharacterQuery(null, false, -1, -1));
 	}
 
 	/**
@@ -257,7 +887,7 @@ public class MarvelAPI {
 	 * @return
 	 */
 	public Observable<CharacterContainer> getCharacters(int limit, int offset) {
-		return getCharacters(characterRequest(limit, offset, null, false))
+		return getCharacters(new CharacterQuery(null, false, limit, offset))
 				.map(new Func1<CharacterResponse, CharacterContainer>() {
 					@Override
 					public CharacterContainer call(CharacterResponse characterResponse) {
@@ -266,13 +896,23 @@ public class MarvelAPI {
 				});
 	}
 
+	/**
+	 * call to stream the page of characters defined by limit and offset, one character at a time
+	 * @param limit
+	 * @param offset
+	 * @return
+	 */
+	public Observable<Character> streamCharacters(int limit, int offset) {
+		return streamCharacters(characterRequest(limit, offset, null, false));
+	}
+
 	/**
 	 * call to get the character named exactly 'name'
 	 * @param name
 	 * @return
 	 */
 	public Observable<Character> getCharacter(final String name) {
-		return getCharacters(characterRequest(-1, -1, name, false))
+		return getCharacters(new CharacterQuery(name, false, -1, -1))
 				.map(new Func1<CharacterResponse, Character>() {
 					@Override
 					public Character call(CharacterResponse characterResponse) {
@@ -290,7 +930,7 @@ public class MarvelAPI {
 	 * @return
 	 */
 	public Observable<ArrayList<Character>> getCharacterMatching(String name) {
-		return getCharacters(characterRequest(-1, -1, name, true))
+		return getCharacters(new CharacterQuery(name, true, -1, -1))
 				.map(new Func1<CharacterResponse, ArrayList<Character>>() {
 					@Override
 					public ArrayList<Character> call(CharacterResponse characterResponse) {
@@ -307,7 +947,7 @@ public class MarvelAPI {
 	 * @return
 	 */
 	public Observable<CharacterResponse> getCharacterMatching(String name, int limit, int offset) {
-		return getCharacters(characterRequest(limit, offset, name, true));
+		return getCharacters(new CharacterQuery(name, true, limit, offset));
 	}
 
 	/**
@@ -317,8 +957,7 @@ public class MarvelAPI {
 	 */
 	@NonNull
 	public static final CharacterResponse parseCharacterResponse(String responseBody) {
-		Gson gson = new GsonBuilder().create();
-		CharacterResponse characters = gson.fromJson(responseBody, CharacterResponse.class);
+		CharacterResponse characters = MarvelCodec.gson().fromJson(responseBody, CharacterResponse.class);
 		if (characters == null) {
 			throw new RuntimeException("Unexpected null result processing JSON");
 		}
@@ -326,7 +965,17 @@ public class MarvelAPI {
 	}
 
 	/**
-	 *  builds an appropriate okhttp request object to fetch characters
+	 *  builds the okhttp request object for a normalized character query
+	 * @param query
+	 * @return
+	 */
+	public Request characterRequest(CharacterQuery query) {
+		return characterRequest(query.limit, query.offset, query.name, query.startsWith);
+	}
+
+	/**
+	 *  builds an appropriate okhttp request object to fetch characters. The request is unsigned: the ts and hash
+	 *  parameters that the api needs are added by signRequest() when the request goes out on the network
 	 * @param limit
 	 * @param offset
 	 * @param name
@@ -334,19 +983,7 @@ public class MarvelAPI {
 	 * @return
 	 */
 	public Request characterRequest(int limit, int offset, String name, boolean startsWith) {
-		HttpUrl okurl = HttpUrl.parse(urlBase);
-		if (okurl == null) {
-			throw new RuntimeException("request builder fails on ");
-		}
-		final Long tsLong = System.currentTimeMillis()/1000;
-		final String ts = tsLong.toString();
-		final String hash = md5(ts + privateKey + apiKey);
-		HttpUrl.Builder b = okurl.newBuilder()
-				.addEncodedPathSegment("characters")
-				.addQueryParameter("apikey", apiKey)
-				.addQueryParameter("ts", ts)
-				.addQueryParameter("hash", hash);
-
+		HttpUrl.Builder b = signer.charactersUrl();
 		if (limit > 0) {
 			b.addQueryParameter("limit", Integer.toString(limit));
 		}
@@ -356,9 +993,35 @@ public class MarvelAPI {
 		if (name != null) {
 			b.addQueryParameter(startsWith? "nameStartsWith":"name", name);
 		}
-		okurl = b.build();
-//		Log.d("fetchRequest", "made url!! "+okurl.toString());
-		return new Request.Builder().url(okurl).build();
+		return new Request.Builder().url(b.build()).build();
+	}
+
+	/**
+	 *  builds an unsigned okhttp request object to fetch a page of the resources of one kind related to a character
+	 * @param characterId
+	 * @param kind path of the resource endpoint, ie "comics", "series" or "events"
+	 * @param limit
+	 * @param offset
+	 * @return
+	 */
+	public Request resourceRequest(int characterId, String kind, int limit, int offset) {
+		HttpUrl.Builder b = signer.url("characters", Integer.toString(characterId), kind);
+		if (limit > 0) {
+			b.addQueryParameter("limit", Integer.toString(limit));
+		}
+		if (offset > 0) {
+			b.addQueryParameter("offset", Integer.toString(offset));
+		}
+		return new Request.Builder().url(b.build()).build();
+	}
+
+	/**
+	 * adds the time dependent ts and hash auth parameters to a request
+	 * @param okRequest
+	 * @return
+	 */
+	public Request signRequest(Request okRequest) {
+		return okRequest.newBuilder().url(signer.sign(okRequest.url())).build();
 	}
 
 	/**
@@ -0,0 +1,479 @@
+package com.mayaswell.marvelous;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.CharacterContainer;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.MarvelAPI.Image;
+import com.mayaswell.marvelous.MarvelAPI.Resource;
+import com.mayaswell.marvelous.MarvelAPI.ResourceContainer;
+import com.mayaswell.marvelous.MarvelAPI.ResourceList;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * one shared, process wide codec for the Marvel model classes. The type adapters are hand written, so there is no
+ * reflection or adapter cache warmup on each response, and a single Gson instance is built once and reused.
+ * Repeated strings in image references (the handful of extensions, and the placeholder image path shared by every
+ * character without a picture) are deduplicated as they are read.
+ */
+public class MarvelCodec {
+
+	/**
+	 * bounded pool for deduplicating strings that repeat across a response. once full, values pass through as is
+	 */
+	static class StringPool {
+		private final HashMap<String, String> pool = new HashMap<>();
+		private final int maxSize;
+
+		StringPool(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		synchronized String get(String s) {
+			if (s == null) {
+				return null;
+			}
+			String pooled = pool.get(s);
+			if (pooled != null) {
+				return pooled;
+			}
+			if (pool.size() < maxSize) {
+				pool.put(s, s);
+			}
+			return s;
+		}
+	}
+
+	private static final StringPool extensions = new StringPool(16);
+	private static final StringPool paths = new StringPool(64);
+
+	/**
+	 * the only image paths that recur between characters are the 'image not available' placeholders
+	 */
+	private static final String PLACEHOLDER_MARK = "image_not_available";
+
+	public static final TypeAdapter<Image> IMAGE = new TypeAdapter<Image>() {
+		@Override
+		public void write(JsonWriter out, Image image) throws IOException {
+			if (image == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("path").value(image.path);
+			out.name("extension").value(image.extension);
+			out.endObject();
+		}
+
+		@Override
+		public Image read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			Image image = new Image();
+			in.beginObject();
+			while (in.hasNext()) {
+				String field = in.nextName();
+				if (nullValue(in)) {
+					continue;
+				}
+				switch (field) {
+					case "path":
+						String path = in.nextString();
+						image.path = path.contains(PLACEHOLDER_MARK)? paths.get(path): path;
+						break;
+					case "extension":
+						image.extension = extensions.get(in.nextString());
+						break;
+					default:
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return image;
+		}
+	};
+
+	/**
+	 * summary of a related resource list: we keep the count and uri, and skip the inline items
+	 */
+	public static final TypeAdapter<ResourceList> RESOURCE_LIST = new TypeAdapter<ResourceList>() {
+		@Override
+		public void write(JsonWriter out, ResourceList list) throws IOException {
+			if (list == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("available").value(list.available);
+			out.name("collectionURI").value(list.collectionURI);
+			out.endObject();
+		}
+
+		@Override
+		public ResourceList read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			ResourceList list = new ResourceList();
+			in.beginObject();
+			while (in.hasNext()) {
+				String field = in.nextName();
+				if (nullValue(in)) {
+					continue;
+				}
+				switch (field) {
+					case "available":
+						list.available = in.nextInt();
+						break;
+					case "collectionURI":
+						list.collectionURI = in.nextString();
+						break;
+					default: // returned, items
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return list;
+		}
+	};
+
+	public static final TypeAdapter<Character> CHARACTER = new TypeAdapter<Character>() {
+		@Override
+		public void write(JsonWriter out, Character character) throws IOException {
+			if (character == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("id").value(character.id);
+			out.name("name").value(character.name);
+			out.name("description").value(character.description);
+			out.name("resourceURI").value(character.resourceURI);
+			out.name("thumbnail");
+			IMAGE.write(out, character.thumbnail);
+			if (character.comics != null) {
+				out.name("comics");
+				RESOURCE_LIST.write(out, character.comics);
+			}
+			if (character.series != null) {
+				out.name("series");
+				RESOURCE_LIST.write(out, character.series);
+			}
+			if (character.events != null) {
+				out.name("events");
+				RESOURCE_LIST.write(out, character.events);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Character read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			Character character = new Character();
+			in.beginObject();
+			while (in.hasNext()) {
+				String field = in.nextName();
+				if (nullValue(in)) {
+					continue;
+				}
+				switch (field) {
+					case "id":
+						character.id = in.nextInt();
+						break;
+					case "name":
+						character.name = in.nextString();
+						break;
+					case "description":
+						character.description = in.nextString();
+						break;
+					case "resourceURI":
+						character.resourceURI = in.nextString();
+						break;
+					case "thumbnail":
+						character.thumbnail = IMAGE.read(in);
+						break;
+					case "comics":
+						character.comics = RESOURCE_LIST.read(in);
+						break;
+					case "series":
+						character.series = RESOURCE_LIST.read(in);
+						break;
+					case "events":
+						character.events = RESOURCE_LIST.read(in);
+						break;
+					default: // modified, stories, urls
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return character;
+		}
+	};
+
+	public static final TypeAdapter<Resource> RESOURCE = new TypeAdapter<Resource>() {
+		@Override
+		public void write(JsonWriter out, Resource resource) throws IOException {
+			if (resource == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("id").value(resource.id);
+			out.name("title").value(resource.title);
+			out.name("description").value(resource.description);
+			out.name("resourceURI").value(resource.resourceURI);
+			out.name("thumbnail");
+			IMAGE.write(out, resource.thumbnail);
+			out.endObject();
+		}
+
+		@Override
+		public Resource read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			Resource resource = new Resource();
+			in.beginObject();
+			while (in.hasNext()) {
+				String field = in.nextName();
+				if (nullValue(in)) {
+					continue;
+				}
+				switch (field) {
+					case "id":
+						resource.id = in.nextInt();
+						break;
+					case "title":
+						resource.title = in.nextString();
+						break;
+					case "description":
+						resource.description = in.nextString();
+						break;
+					case "resourceURI":
+						resource.resourceURI = in.nextString();
+						break;
+					case "thumbnail":
+						resource.thumbnail = IMAGE.read(in);
+						break;
+					default: // everything else about a comic, series or event
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return resource;
+		}
+	};
+
+	public static final TypeAdapter<ResourceContainer> RESOURCE_CONTAINER = new TypeAdapter<ResourceContainer>() {
+		@Override
+		public void write(JsonWriter out, ResourceContainer container) throws IOException {
+			if (container == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("offset").value(container.offset);
+			out.name("limit").value(container.limit);
+			out.name("total").value(container.total);
+			out.name("count").value(container.count);
+			out.name("results");
+			out.beginArray();
+			for (Resource r: container.results) {
+				RESOURCE.write(out, r);
+			}
+			out.endArray();
+			out.endObject();
+		}
+
+		@Override
+		public ResourceContainer read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			ResourceContainer container = new ResourceContainer();
+			in.beginObject();
+			while (in.hasNext()) {
+				String field = in.nextName();
+				if (nullValue(in)) {
+					continue;
+				}
+				switch (field) {
+					case "offset":
+						container.offset = in.nextInt();
+						break;
+					case "limit":
+						container.limit = in.nextInt();
+						break;
+					case "total":
+						container.total = in.nextInt();
+						break;
+					case "count":
+						container.count = in.nextInt();
+						container.results.ensureCapacity(container.count);
+						break;
+					case "results":
+						in.beginArray();
+						while (in.hasNext()) {
+							container.results.add(RESOURCE.read(in));
+						}
+						in.endArray();
+						break;
+					default:
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return container;
+		}
+	};
+
+	/**
+	 * read a related resource response down to its data container, throwing on an error response, as for
+	 * a character response
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static ResourceContainer readResourceResponse(JsonReader in) throws IOException {
+		ResourceContainer data = null;
+		String errorCode = null;
+		String errorMessage = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			String field = in.nextName();
+			if (nullValue(in)) {
+				continue;
+			}
+			switch (field) {
+				case "code":
+					errorCode = in.nextString();
+					break;
+				case "message":
+					errorMessage = in.nextString();
+					break;
+				case "data":
+					data = RESOURCE_CONTAINER.read(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+			if (errorCode != null && errorMessage != null) {
+				throw new RuntimeException("Error status from server: "+errorMessage);
+			}
+		}
+		in.endObject();
+		if (data == null) {
+			throw new RuntimeException("Unexpected null result processing JSON");
+		}
+		return data;
+	}
+
+	public static final TypeAdapter<CharacterContainer> CONTAINER = new TypeAdapter<CharacterContainer>() {
+		@Override
+		public void write(JsonWriter out, CharacterContainer container) throws IOException {
+			if (container == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("offset").value(container.offset);
+			out.name("limit").value(container.limit);
+			out.name("total").value(container.total);
+			out.name("count").value(container.count);
+			out.name("results");
+			out.beginArray();
+			for (Character c: container.results) {
+				CHARACTER.write(out, c);
+			}
+			out.endArray();
+			out.endObject();
+		}
+
+		@Override
+		public CharacterContainer read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			return plainDecoder.readContainer(in);
+		}
+	};
+
+	public static final TypeAdapter<CharacterResponse> RESPONSE = new TypeAdapter<CharacterResponse>() {
+		@Override
+		public void write(JsonWriter out, CharacterResponse response) throws IOException {
+			if (response == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("code").value(response.code);
+			out.name("status").value(response.status);
+			out.name("copyright").value(response.copyright);
+			out.name("attributionText").value(response.attributionText);
+			out.name("attributionHTML").value(response.attributionHTML);
+			out.name("data");
+			CONTAINER.write(out, response.data);
+			out.endObject();
+		}
+
+		@Override
+		public CharacterResponse read(JsonReader in) throws IOException {
+			if (nullValue(in)) {
+				return null;
+			}
+			return plainDecoder.readResponse(in);
+		}
+	};
+
+	/**
+	 * the decoder is stateless without a listener, so one instance serves every thread
+	 */
+	private static final CharacterResponseDecoder plainDecoder = new CharacterResponseDecoder();
+
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(Image.class, IMAGE)
+			.registerTypeAdapter(Character.class, CHARACTER)
+			.registerTypeAdapter(CharacterContainer.class, CONTAINER)
+			.registerTypeAdapter(CharacterResponse.class, RESPONSE)
+			.registerTypeAdapter(ResourceList.class, RESOURCE_LIST)
+			.registerTypeAdapter(Resource.class, RESOURCE)
+			.registerTypeAdapter(ResourceContainer.class, RESOURCE_CONTAINER)
+			.create();
+
+	/**
+	 * @return the shared Gson instance, with all the Marvel model adapters registered
+	 */
+	public static Gson gson() {
+		return gson;
+	}
+
+	/**
+	 * consume a json null, leaving the field at its default
+	 * @param reader
+	 * @return true if the value was null
+	 * @throws IOException
+	 */
+	static boolean nullValue(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return true;
+		}
+		return false;
+	}
+}
@@ -1,27 +1,57 @@
 package com.mayaswell.marvelous;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.mayaswell.marvelous.MarvelAPI.Character;
 import com.mayaswell.marvelous.MarvelAPI.Image;
 
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+
 /**
  * Created by dak on 10/23/2016.
+ * the local cache of characters. one long lived connection, in write ahead logging mode, with the character writes
+ * on statements compiled the once, and every cursor closed as soon as it has been read.
+ * The cache is held to a row count and an approximate size in bytes. Each row keeps the time it was last used and
+ * how often, and when either budget is passed the least recently used rows go, a batch at a time, until we're back
+ * down to a low water mark, so eviction happens now and again rather than on every insert.
+ * Names and descriptions are also held in a full text index, which triggers keep in step with the table through
+ * every insert, update and eviction, so the cache can be searched by word without going to the network.
+ * In front of it all is a smaller cache of characters in memory, written through on every write, so that lookups by
+ * id mostly don't touch the db, and rows that we do read come back as the characters we already hold.
+ * Off the main thread, there are observable reads, on a small pool of reader threads, and writes, which all go
+ * through the one writer thread. Writes that queue up while it is busy are run together, in the one transaction.
+ * Besides the characters themselves, we keep the answers to api queries, as the ordered ids of the characters that
+ * came back for them, so a search we have made before can be answered from here, in the same order, with the same
+ * totals.
  */
 public class MarvelDBHelper extends SQLiteOpenHelper {
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 5;
 	public static final String DATABASE_NAME = "marvelCache";
 
 	public static final String TABLE_CHARACTERS = "characters";
+	public static final String TABLE_CHARACTERS_FTS = "characters_fts"; // docid is the dbkey of the character
+	public static final String TABLE_QUERIES = "queries";
+	public static final String TABLE_QUERY_RESULTS = "query_results";
 
 	public static final String KEY_DBKEY = "dbkey"; // ie the primary key/sql rowid
 	public static final String KEY_ID = "id"; // the marvel id of this entry
@@ -29,12 +59,550 @@ public class MarvelDBHelper extends SQLiteOpenHelper {
 	public static final String KEY_DESCRIPTION = "description";
 	public static final String KEY_IMAGE_PATH = "image_path";
 	public static final String KEY_IMAGE_EXTENSION = "image_suffix";
-	public static final String KEY_TIMESTAMP = "timestamp";
+	public static final String KEY_TIMESTAMP = "timestamp"; // when the data was last fetched from the api
+	public static final String KEY_LAST_ACCESS = "last_access"; // when the character was last used
+	public static final String KEY_HITS = "hits";
+	public static final String KEY_SIZE = "size"; // approximate bytes taken up by the row
+	public static final String KEY_QUERY = "query_key"; // the CharacterQuery key
+	public static final String KEY_TOTAL = "total";
+	public static final String KEY_COUNT = "count";
+	public static final String KEY_POSITION = "position";
+
+	public static final String INDEX_ID = "characters_id";
+	public static final String INDEX_TIMESTAMP = "characters_timestamp";
+	public static final String INDEX_ACCESS = "characters_access";
+	public static final String INDEX_QUERIES_TIMESTAMP = "queries_timestamp";
+
+	private static final int MAX_QUERIES = 256;
+
+	private static final String[] SQL_CREATE_INDEXES = {
+			"CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_ID + " ON " + TABLE_CHARACTERS + "(" + KEY_ID + ")",
+			"CREATE INDEX IF NOT EXISTS " + INDEX_TIMESTAMP + " ON " + TABLE_CHARACTERS + "(" + KEY_TIMESTAMP + ")",
+			"CREATE INDEX IF NOT EXISTS " + INDEX_ACCESS + " ON " + TABLE_CHARACTERS +
+					"(" + KEY_LAST_ACCESS + "," + KEY_HITS + ")"
+	};
+
+	/**
+	 * the full text index and the triggers that keep it in step. fts4 only gets external content tables after api
+	 * 15's sqlite, so the index keeps its own copy of the text
+	 */
+	private static final String[] SQL_CREATE_FTS = {
+			"CREATE VIRTUAL TABLE " + TABLE_CHARACTERS_FTS + " USING fts4(" + KEY_NAME + "," + KEY_DESCRIPTION + ")",
+			"CREATE TRIGGER " + TABLE_CHARACTERS + "_fts_insert AFTER INSERT ON " + TABLE_CHARACTERS +
+					" BEGIN INSERT INTO " + TABLE_CHARACTERS_FTS + "(docid," + KEY_NAME + "," + KEY_DESCRIPTION + ")" +
+					" VALUES (new." + KEY_DBKEY + ",new." + KEY_NAME + ",new." + KEY_DESCRIPTION + "); END",
+			"CREATE TRIGGER " + TABLE_CHARACTERS + "_fts_update AFTER UPDATE OF " +
+					KEY_NAME + "," + KEY_DESCRIPTION + " ON " + TABLE_CHARACTERS +
+					" WHEN old." + KEY_NAME + " IS NOT new." + KEY_NAME +
+					" OR old." + KEY_DESCRIPTION + " IS NOT new." + KEY_DESCRIPTION +
+					" BEGIN UPDATE " + TABLE_CHARACTERS_FTS + " SET " +
+					KEY_NAME + "=new." + KEY_NAME + "," + KEY_DESCRIPTION + "=new." + KEY_DESCRIPTION +
+					" WHERE docid=old." + KEY_DBKEY + "; END",
+			"CREATE TRIGGER " + TABLE_CHARACTERS + "_fts_delete AFTER DELETE ON " + TABLE_CHARACTERS +
+					" BEGIN DELETE FROM " + TABLE_CHARACTERS_FTS + " WHERE docid=old." + KEY_DBKEY + "; END"
+	};
+
+	/**
+	 * the answers to queries, one row for each, and one for each character in it, in the order the api gave them
+	 */
+	private static final String[] SQL_CREATE_QUERIES = {
+			"CREATE TABLE " + TABLE_QUERIES + "(" +
+					KEY_QUERY + " TEXT PRIMARY KEY," + KEY_TOTAL + " INTEGER," + KEY_COUNT + " INTEGER," +
+					KEY_TIMESTAMP + " INTEGER)",
+			"CREATE TABLE " + TABLE_QUERY_RESULTS + "(" +
+					KEY_QUERY + " TEXT," + KEY_POSITION + " INTEGER," + KEY_ID + " INTEGER," +
+					"PRIMARY KEY (" + KEY_QUERY + "," + KEY_POSITION + "))",
+			"CREATE INDEX " + INDEX_QUERIES_TIMESTAMP + " ON " + TABLE_QUERIES + "(" + KEY_TIMESTAMP + ")",
+			"CREATE TRIGGER " + TABLE_QUERIES + "_delete AFTER DELETE ON " + TABLE_QUERIES +
+					" BEGIN DELETE FROM " + TABLE_QUERY_RESULTS + " WHERE " + KEY_QUERY + "=old." + KEY_QUERY + "; END"
+	};
+
+	/**
+	 * a step in the schema, from the version before to toVersion
+	 */
+	static class Migration {
+		final int toVersion;
+		final String description;
+		final String[] statements;
+
+		Migration(int toVersion, String description, String... statements) {
+			this.toVersion = toVersion;
+			this.description = description;
+			this.statements = statements;
+		}
+	}
+
+	/**
+	 * every step from the first version, in order, ending at DATABASE_VERSION. a new version adds a step here, as
+	 * well as changing onCreate(), and never changes the steps before it, as devices may be at any of them. so the
+	 * steps are written out as literal sql, as it stood at their version, rather than built from the constants that
+	 * onCreate() uses, which are free to change
+	 */
+	static final Migration[] MIGRATIONS = {
+			new Migration(2, "unique marvel ids, indexed",
+					// version 1 didn't enforce unique ids, so keep the latest row for each
+					"DELETE FROM characters WHERE dbkey NOT IN (SELECT MAX(dbkey) FROM characters GROUP BY id)",
+					"CREATE UNIQUE INDEX IF NOT EXISTS characters_id ON characters(id)",
+					"CREATE INDEX IF NOT EXISTS characters_timestamp ON characters(timestamp)"),
+			new Migration(3, "access times, hits and sizes for eviction",
+					"ALTER TABLE characters ADD COLUMN last_access INTEGER",
+					"ALTER TABLE characters ADD COLUMN hits INTEGER DEFAULT 0",
+					"ALTER TABLE characters ADD COLUMN size INTEGER DEFAULT 0",
+					"UPDATE characters SET last_access=timestamp," +
+							"size=48+IFNULL(LENGTH(name),0)+IFNULL(LENGTH(description),0)" +
+							"+IFNULL(LENGTH(image_path),0)+IFNULL(LENGTH(image_suffix),0)",
+					"CREATE INDEX IF NOT EXISTS characters_access ON characters(last_access,hits)"),
+			new Migration(4, "full text index on names and descriptions",
+					"CREATE VIRTUAL TABLE characters_fts USING fts4(name,description)",
+					"CREATE TRIGGER characters_fts_insert AFTER INSERT ON characters" +
+							" BEGIN INSERT INTO characters_fts(docid,name,description)" +
+							" VALUES (new.dbkey,new.name,new.description); END",
+					"CREATE TRIGGER characters_fts_update AFTER UPDATE OF name,description ON characters" +
+							" WHEN old.name IS NOT new.name OR old.description IS NOT new.description" +
+							" BEGIN UPDATE characters_fts SET name=new.name,description=new.description" +
+							" WHERE docid=old.dbkey; END",
+					"CREATE TRIGGER characters_fts_delete AFTER DELETE ON characters" +
+							" BEGIN DELETE FROM characters_fts WHERE docid=old.dbkey; END",
+					"INSERT INTO characters_fts(docid,name,description) SELECT dbkey,name,description FROM characters",
+					// the text is held twice now
+					"UPDATE characters SET size=size+IFNULL(LENGTH(name),0)+IFNULL(LENGTH(description),0)"),
+			new Migration(5, "answers to queries",
+					"CREATE TABLE queries(query_key TEXT PRIMARY KEY,total INTEGER,count INTEGER,timestamp INTEGER)",
+					"CREATE TABLE query_results(query_key TEXT,position INTEGER,id INTEGER," +
+							"PRIMARY KEY (query_key,position))",
+					"CREATE INDEX queries_timestamp ON queries(timestamp)",
+					"CREATE TRIGGER queries_delete AFTER DELETE ON queries" +
+							" BEGIN DELETE FROM query_results WHERE query_key=old.query_key; END")
+	};
+
+	/**
+	 * the columns that we read characters from, in the order of the COLUMN_ positions, so we don't have to look
+	 * them up by name on every row
+	 */
+	private static final String[] CHARACTER_COLUMNS = {
+			KEY_ID, KEY_NAME, KEY_DESCRIPTION, KEY_IMAGE_PATH, KEY_IMAGE_EXTENSION, KEY_TIMESTAMP
+	};
+	private static final int COLUMN_ID = 0;
+	private static final int COLUMN_NAME = 1;
+	private static final int COLUMN_DESCRIPTION = 2;
+	private static final int COLUMN_IMAGE_PATH = 3;
+	private static final int COLUMN_IMAGE_EXTENSION = 4;
+	private static final int COLUMN_TIMESTAMP = 5;
+	private static final String SQL_CHARACTER_COLUMNS = columns(null);
+
+	private static final int ROW_OVERHEAD_BYTES = 48; // rough cost of the key, numeric columns and index entries
+	private static final int EVICTION_BATCH = 100;
+	private static final int LOW_WATER_PERCENT = 90;
+
+	/**
+	 * the statements for writing a character. fields are bound in this order, then the id again for the update, or
+	 * the first access time for the insert. a refresh of the data doesn't count as a use.
+	 */
+	private static final String SQL_INSERT_CHARACTER =
+			"INSERT OR IGNORE INTO " + TABLE_CHARACTERS + "(" +
+				KEY_ID + "," + KEY_NAME + "," + KEY_DESCRIPTION + "," +
+				KEY_IMAGE_PATH + "," + KEY_IMAGE_EXTENSION + "," + KEY_TIMESTAMP + "," + KEY_SIZE + "," +
+				KEY_LAST_ACCESS +
+			") VALUES (?,?,?,?,?,?,?,?)";
+	private static final String SQL_UPDATE_CHARACTER =
+			"UPDATE " + TABLE_CHARACTERS + " SET " +
+				KEY_ID + "=?," + KEY_NAME + "=?," + KEY_DESCRIPTION + "=?," +
+				KEY_IMAGE_PATH + "=?," + KEY_IMAGE_EXTENSION + "=?," + KEY_TIMESTAMP + "=?," + KEY_SIZE + "=?" +
+			" WHERE " + KEY_ID + "=?";
+	private static final String SQL_CHARACTER_SIZE =
+			"SELECT IFNULL((SELECT " + KEY_SIZE + " FROM " + TABLE_CHARACTERS + " WHERE " + KEY_ID + "=?),-1)";
+	private static final String SQL_ACCESS_CHARACTER =
+			"UPDATE " + TABLE_CHARACTERS + " SET " +
+				KEY_LAST_ACCESS + "=?," + KEY_HITS + "=" + KEY_HITS + "+1" +
+			" WHERE " + KEY_ID + "=?";
+	private static final String SQL_EVICTION_ORDER = " ORDER BY " + KEY_LAST_ACCESS + "," + KEY_HITS + " LIMIT ";
+
 	private final int maxCharacters;
+	private final long maxBytes;
+	private long rowCount = -1; // counted on open, and kept exact as we go from the sizes of the rows we write and delete
+	private long byteCount = 0;
+
+	/**
+	 * characters found in the cache, with the timestamp of the oldest of them
+	 */
+	public static class CachedCharacters {
+		public final ArrayList<Character> characters;
+		public final long oldest;
+
+		CachedCharacters(ArrayList<Character> characters, long oldest) {
+			this.characters = characters;
+			this.oldest = oldest;
+		}
+	}
+
+	/**
+	 * the answer we got from the api to a query, as it was when it came. oldest is when that was
+	 */
+	public static class QueryResult extends CachedCharacters {
+		public final int total;
+		public final int count;
+
+		QueryResult(ArrayList<Character> characters, int total, int count, long fetched) {
+			super(characters, fetched);
+			this.total = total;
+			this.count = count;
+		}
 
-	public MarvelDBHelper(int maxCharacters, Context context) {
-		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		/**
+		 * @return true if this is every match there is, not just a page of them
+		 */
+		public boolean isComplete() {
+			return count >= total;
+		}
+	}
+
+	private SQLiteStatement insertStatement = null;
+	private SQLiteStatement updateStatement = null;
+	private SQLiteStatement sizeStatement = null;
+	private SQLiteStatement accessStatement = null;
+	private SQLiteStatement queryResultStatement = null;
+	private final CharacterCache memory;
+
+	/**
+	 * a write, run on the writer thread in a transaction that it may share with others
+	 * @param <T>
+	 */
+	public interface Write<T> {
+		T apply(MarvelDBHelper helper);
+	}
+
+	/**
+	 * a write waiting for the writer thread, and the subject that its result goes to, once it is committed
+	 * @param <T>
+	 */
+	private static class PendingWrite<T> {
+		final Write<T> write;
+		final AsyncSubject<T> result = AsyncSubject.create();
+		T value;
+		RuntimeException error;
+
+		PendingWrite(Write<T> write) {
+			this.write = write;
+		}
+
+		/**
+		 * @param helper
+		 * @return false if the write failed
+		 */
+		boolean run(MarvelDBHelper helper) {
+			value = null;
+			error = null;
+			try {
+				value = write.apply(helper);
+				return true;
+			} catch (RuntimeException e) {
+				Log.d("MarvelDBHelper", "write failed, "+e.getMessage());
+				error = e;
+				return false;
+			}
+		}
+
+		void fail(RuntimeException e) {
+			error = e;
+		}
+
+		void deliver() {
+			if (error != null) {
+				result.onError(error);
+			} else {
+				result.onNext(value);
+				result.onCompleted();
+			}
+		}
+	}
+
+	private final Scheduler readScheduler;
+	private final ExecutorService writeExecutor;
+	private final ArrayList<PendingWrite<?>> pendingWrites = new ArrayList<>();
+	private boolean drainQueued = false;
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drainWrites();
+		}
+	};
+
+	/**
+	 * the helper holds the one connection to the db, opened on first use and kept open, in write ahead logging
+	 * mode, so that reads go ahead alongside a write rather than waiting on it. It should be shared, rather than
+	 * made afresh for each user.
+	 * @param maxCharacters most rows we keep
+	 * @param maxBytes approximate size in bytes that we keep the character data to
+	 * @param maxInMemory most characters that we keep in memory
+	 * @param readers number of threads for observable reads
+	 * @param context
+	 */
+	public MarvelDBHelper(int maxCharacters, long maxBytes, int maxInMemory, int readers, Context context) {
+		this(DATABASE_NAME, maxCharacters, maxBytes, maxInMemory, readers, context);
+	}
+
+	/**
+	 * a helper on the db of the given name, eg to test on something other than the real cache
+	 */
+	MarvelDBHelper(String name, int maxCharacters, long maxBytes, int maxInMemory, int readers, Context context) {
+		super(context.getApplicationContext(), name, null, DATABASE_VERSION);
 		this.maxCharacters = maxCharacters;
+		this.maxBytes = maxBytes;
+		this.memory = new CharacterCache(maxInMemory);
+		readScheduler = Schedulers.from(Executors.newFixedThreadPool(readers > 0? readers: 1, threads("marvel-db-read")));
+		writeExecutor = Executors.newSingleThreadExecutor(threads("marvel-db-write"));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
+	}
+
+	/**
+	 * @return the in memory cache, eg for its hit and miss counts
+	 */
+	public CharacterCache getMemoryCache() {
+		return memory;
+	}
+
+	/**
+	 * @param name
+	 * @return a factory for daemon threads named after the given name
+	 */
+	private static ThreadFactory threads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * run a read on the reader pool when subscribed to
+	 * @param read
+	 * @param <T>
+	 * @return
+	 */
+	public <T> Observable<T> read(Callable<T> read) {
+		return Observable.fromCallable(read).subscribeOn(readScheduler);
+	}
+
+	/**
+	 * queue a write for the writer thread, straight away, rather than on subscription. writes that queue up while
+	 * the writer is busy are run together, in order, in one transaction. the result comes once that commits, on
+	 * the writer thread, and is kept for late subscribers, so a write that nobody waits on is fine too.
+	 * @param write
+	 * @param <T>
+	 * @return
+	 */
+	public <T> Observable<T> write(Write<T> write) {
+		PendingWrite<T> pending = new PendingWrite<>(write);
+		boolean queue;
+		synchronized (pendingWrites) {
+			pendingWrites.add(pending);
+			queue = !drainQueued;
+			drainQueued = true;
+		}
+		if (queue) {
+			writeExecutor.execute(drain);
+		}
+		return pending.result;
+	}
+
+	/**
+	 * run all the writes waiting, in one transaction. only on the writer thread
+	 */
+	private void drainWrites() {
+		ArrayList<PendingWrite<?>> batch;
+		synchronized (pendingWrites) {
+			batch = new ArrayList<>(pendingWrites);
+			pendingWrites.clear();
+			drainQueued = false;
+		}
+		if (!commit(batch) && batch.size() > 1) {
+			// one bad write rolls back the lot, so give each its own transaction, to keep the good ones
+			for (PendingWrite<?> pending: batch) {
+				commit(Collections.<PendingWrite<?>>singletonList(pending));
+			}
+		} else if (batch.size() > 1) {
+			Log.d("MarvelDBHelper", "merged "+batch.size()+" writes");
+		}
+		for (PendingWrite<?> pending: batch) {
+			pending.deliver();
+		}
+	}
+
+	/**
+	 * run the given writes in one transaction
+	 * @param writes
+	 * @return true if they all went through and were committed
+	 */
+	private synchronized boolean commit(List<PendingWrite<?>> writes) {
+		SQLiteDatabase db = db();
+		boolean ok = true;
+		try {
+			db.beginTransactionNonExclusive();
+			try {
+				for (PendingWrite<?> pending: writes) {
+					if (!pending.run(this)) {
+						ok = false;
+					}
+				}
+				if (ok) {
+					db.setTransactionSuccessful();
+				}
+			} finally {
+				db.endTransaction();
+			}
+		} catch (RuntimeException e) {
+			Log.d("MarvelDBHelper", "write transaction failed, "+e.getMessage());
+			for (PendingWrite<?> pending: writes) {
+				pending.fail(e);
+			}
+			ok = false;
+		}
+		if (!ok) {
+			memory.clear(); // it was written through ahead of the rollback
+			rowCount = -1;
+		}
+		return ok;
+	}
+
+	/**
+	 * write a page of characters on the writer thread, as updateCharacters()
+	 * @param characters
+	 * @return the number of characters added for the first time
+	 */
+	public Observable<Integer> writeCharacters(final List<Character> characters) {
+		return write(new Write<Integer>() {
+			@Override
+			public Integer apply(MarvelDBHelper helper) {
+				return helper.updateCharacters(characters);
+			}
+		});
+	}
+
+	/**
+	 * write the answer to a query on the writer thread, as putQueryResult()
+	 * @param key
+	 * @param total
+	 * @param characters
+	 * @return the number of characters added for the first time
+	 */
+	public Observable<Integer> writeQueryResult(final String key, final int total, final List<Character> characters) {
+		return write(new Write<Integer>() {
+			@Override
+			public Integer apply(MarvelDBHelper helper) {
+				return helper.putQueryResult(key, total, characters);
+			}
+		});
+	}
+
+	/**
+	 * note a use of a character on the writer thread, adding it to the cache if it isn't there
+	 * @param character
+	 * @return true if it was added
+	 */
+	public Observable<Boolean> viewCharacter(final Character character) {
+		return write(new Write<Boolean>() {
+			@Override
+			public Boolean apply(MarvelDBHelper helper) {
+				if (helper.recordAccess(character.id)) {
+					return false;
+				}
+				helper.updateCharacter(character);
+				helper.recordAccess(character.id);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * note a use of a character on the writer thread, along with whatever other writes are queued
+	 * @param id
+	 * @return false if we don't hold that character
+	 */
+	public Observable<Boolean> accessCharacter(final long id) {
+		return write(new Write<Boolean>() {
+			@Override
+			public Boolean apply(MarvelDBHelper helper) {
+				return helper.recordAccess(id);
+			}
+		});
+	}
+
+	/**
+	 * the cached characters, as getCharacterPages(), made on the reader pool, with the ids and the first window
+	 * already read, and reading later windows in on the reader pool too, so that showing it and scrolling through it
+	 * don't touch the db on the main thread
+	 * @param limit
+	 * @param windowSize
+	 * @param maxWindows
+	 * @param observer the thread that the list is used on, the main thread in practice
+	 * @return
+	 */
+	public Observable<CharacterPages> characterPages(final int limit, final int windowSize, final int maxWindows,
+			final Scheduler observer) {
+		return read(new Callable<CharacterPages>() {
+			@Override
+			public CharacterPages call() throws Exception {
+				CharacterPages pages = new CharacterPages(pageSource(limit), windowSize, maxWindows,
+						readScheduler, observer);
+				pages.preload();
+				return pages;
+			}
+		});
+	}
+
+	/**
+	 * before jelly bean, write ahead logging can only be turned on once the db is open
+	 * @param db
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	/**
+	 * @return the long lived connection, opening it if need be. never closed after use
+	 */
+	private SQLiteDatabase db() {
+		return getWritableDatabase();
+	}
+
+	/**
+	 * close the connection, and the statements compiled on it
+	 */
+	@Override
+	public synchronized void close() {
+		if (insertStatement != null) {
+			insertStatement.close();
+			insertStatement = null;
+		}
+		if (updateStatement != null) {
+			updateStatement.close();
+			updateStatement = null;
+		}
+		if (sizeStatement != null) {
+			sizeStatement.close();
+			sizeStatement = null;
+		}
+		if (accessStatement != null) {
+			accessStatement.close();
+			accessStatement = null;
+		}
+		if (queryResultStatement != null) {
+			queryResultStatement.close();
+			queryResultStatement = null;
+		}
+		rowCount = -1;
+		super.close();
 	}
 
 	/**
@@ -52,57 +620,132 @@ public class MarvelDBHelper extends SQLiteOpenHelper {
 				KEY_DESCRIPTION + " TEXT" + "," +
 				KEY_IMAGE_PATH + " TEXT" + "," +
 				KEY_IMAGE_EXTENSION + " TEXT" + "," +
-				KEY_TIMESTAMP + " INTEGER" +
+				KEY_TIMESTAMP + " INTEGER" + "," +
+				KEY_LAST_ACCESS + " INTEGER" + "," +
+				KEY_HITS + " INTEGER DEFAULT 0" + "," +
+				KEY_SIZE + " INTEGER DEFAULT 0" +
 				")");
+		execAll(db, SQL_CREATE_INDEXES);
+		execAll(db, SQL_CREATE_FTS);
+		execAll(db, SQL_CREATE_QUERIES);
 	}
 
 	/**
-	 * upgrade the db ... just delete current tables and rebuild .. it's not a heavy cache here
+	 * bring the db up to date, a version at a time, keeping the cached characters. SQLiteOpenHelper runs this in a
+	 * transaction, so a device never sees a half migrated db. a failed step is logged and thrown, which leaves the db
+	 * as it was, rather than dropping what it holds. the steps go all the way back to version 1, so there is always a
+	 * way forward.
 	 * @param db
 	 * @param oldVersion
 	 * @param newVersion
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHARACTERS);
-		onCreate(db);
+		for (Migration migration: MIGRATIONS) {
+			if (migration.toVersion > oldVersion && migration.toVersion <= newVersion) {
+				Log.d("db helper", "migrating to "+migration.toVersion+", "+migration.description);
+				try {
+					execAll(db, migration.statements);
+				} catch (SQLException e) {
+					Log.e("db helper", "migration from "+oldVersion+" to "+migration.toVersion+" failed", e);
+					throw e;
+				}
+			}
+		}
+	}
+
+	private static void execAll(SQLiteDatabase db, String[] statements) {
+		for (String sql: statements) {
+			db.execSQL(sql);
+		}
 	}
 
 	/**
-	 * insert character data into our default db. checks to ensure we don't double up on id
+	 * insert character data into our default db. the unique index on id makes sure we don't double up on id
 	 * @param character
 	 * @return true if inserted
 	 */
-	public boolean createCharacter(Character character) {
-		int key = getKey4Id(character.id);
-		if (key >= 0) {
+	public synchronized boolean createCharacter(Character character) {
+		long timestamp = System.currentTimeMillis();
+		SQLiteStatement insert = insertStatement();
+		int size = bindCharacter(insert, character, timestamp);
+		insert.bindLong(8, timestamp);
+		if (insert.executeInsert() < 0) {
 			return false;
 		}
-		SQLiteDatabase db = getWritableDatabase();
-		ContentValues values = values4Character(character);
-		db.insert(TABLE_CHARACTERS, null, values);
-		db.close();
+		onInserted(size);
+		memory.put(character);
+		checkBudget();
 		return true;
 	}
 
 	/**
-	 * retrieve the character with the given marvel id
+	 * @return the insert statement, compiled the once. only to be used while holding the lock on the helper
+	 */
+	private SQLiteStatement insertStatement() {
+		if (insertStatement == null) {
+			insertStatement = db().compileStatement(SQL_INSERT_CHARACTER);
+		}
+		return insertStatement;
+	}
+
+	/**
+	 * @return the update statement, compiled the once. only to be used while holding the lock on the helper
+	 */
+	private SQLiteStatement updateStatement() {
+		if (updateStatement == null) {
+			updateStatement = db().compileStatement(SQL_UPDATE_CHARACTER);
+		}
+		return updateStatement;
+	}
+
+	/**
+	 * retrieve the character with the given marvel id, from memory if we can, which counts as a use of it. the use is
+	 * queued for the writer, rather than written here
 	 * @param id
 	 * @return
 	 */
 	public Character getCharacter4Id(long id)
 	{
-		SQLiteDatabase db = getReadableDatabase();
-		String selectQuery = "SELECT  * FROM " + TABLE_CHARACTERS + " WHERE " + KEY_ID + " = " + id;
-		Cursor c = db.rawQuery(selectQuery, null);
-		if (c.getCount() == 0) {
-			return null;
-		}
-		Character ch = characterAtCursor(c);
-		db.close();
+		Character held = memory.get((int) id);
+		if (held != null) {
+			accessCharacter(id);
+			return held;
+		}
+		String selectQuery = "SELECT " + SQL_CHARACTER_COLUMNS + " FROM " + TABLE_CHARACTERS + " WHERE " + KEY_ID + " = ?";
+		Cursor c = db().rawQuery(selectQuery, new String[] { String.valueOf(id) });
+		Character ch;
+		try {
+			ch = c.moveToFirst()? characterAtCursor(c): null;
+		} finally {
+			c.close();
+		}
+		if (ch != null) {
+			accessCharacter(id);
+		}
 		return ch;
 	}
 
+	/**
+	 * note a use of the character with the given marvel id, for eviction, and the list of recent characters. this
+	 * writes on the calling thread, so it is for the writer; anywhere else, use accessCharacter()
+	 * @param id
+	 * @return false if we don't hold that character
+	 */
+	public synchronized boolean recordAccess(long id)
+	{
+		if (accessStatement == null) {
+			accessStatement = db().compileStatement(SQL_ACCESS_CHARACTER);
+		}
+		accessStatement.bindLong(1, System.currentTimeMillis());
+		accessStatement.bindLong(2, id);
+		if (accessStatement.executeUpdateDelete() > 0) {
+			return true;
+		}
+		memory.remove((int) id);
+		return false;
+	}
+
 	/**
 	 * get the primary key associated with the given marvel id
 	 * @param id
@@ -110,27 +753,37 @@ public class MarvelDBHelper extends SQLiteOpenHelper {
 	 */
 	public int getKey4Id(long id)
 	{
-		SQLiteDatabase db = getReadableDatabase();
-		String selectQuery = "SELECT  * FROM " + TABLE_CHARACTERS + " WHERE " + KEY_ID + " = " + id;
-		Cursor c = db.rawQuery(selectQuery, null);
-		if (c.getCount() == 0) {
-			return -1;
+		String selectQuery = "SELECT " + KEY_DBKEY + " FROM " + TABLE_CHARACTERS + " WHERE " + KEY_ID + " = ?";
+		Cursor c = db().rawQuery(selectQuery, new String[] { String.valueOf(id) });
+		try {
+			return c.moveToFirst()? c.getInt(0): -1;
+		} finally {
+			c.close();
 		}
-		c.moveToFirst();
-		int i = c.getInt(c.getColumnIndex(KEY_DBKEY));
-		db.close();
-		return i;
 	}
 
 	/**
 	 * delete the character at the given primary key position
 	 * @param key
 	 */
-	public void deleteCharacter4Key(long key)
+	public synchronized void deleteCharacter4Key(long key)
 	{
-		SQLiteDatabase db = getWritableDatabase();
-		db.delete(TABLE_CHARACTERS, KEY_DBKEY + " = ?", new String[] { String.valueOf(key) });
-		db.close();
+		String[] args = new String[] { String.valueOf(key) };
+		Cursor c = db().rawQuery("SELECT " + KEY_ID + "," + KEY_SIZE + " FROM " + TABLE_CHARACTERS +
+				" WHERE " + KEY_DBKEY + " = ?", args);
+		try {
+			if (!c.moveToFirst()) {
+				return;
+			}
+			memory.remove(c.getInt(0));
+			if (rowCount >= 0) {
+				rowCount--;
+				byteCount -= c.getLong(1);
+			}
+		} finally {
+			c.close();
+		}
+		db().delete(TABLE_CHARACTERS, KEY_DBKEY + " = ?", args);
 	}
 
 	/**
@@ -142,117 +795,539 @@ public class MarvelDBHelper extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * get the list of cached characters, up to the given numberic limit, sorted in descending order of timestamp
+	 * get the list of cached characters, up to the given numberic limit, most recently used first
 	 * @param limit
 	 * @return
 	 */
 	public List<Character> getCharacters(int limit)
 	{
 		List<Character> ql = new ArrayList<Character>();
-		String selectQuery = "SELECT  * FROM " + TABLE_CHARACTERS + " ORDER BY " + KEY_TIMESTAMP + " DESC ";
+		String selectQuery = "SELECT " + SQL_CHARACTER_COLUMNS + " FROM " + TABLE_CHARACTERS +
+				" ORDER BY " + KEY_LAST_ACCESS + " DESC ";
 		if (limit > 0) {
 			selectQuery += " LIMIT " + limit;
 		}
-		SQLiteDatabase db = getReadableDatabase();
-		Cursor c = db.rawQuery(selectQuery, null);
+		Cursor c = db().rawQuery(selectQuery, null);
+		try {
+			while (c.moveToNext()) {
+				ql.add(characterAtCursor(c));
+			}
+		} finally {
+			c.close();
+		}
+		Log.d("db helper", selectQuery+" --> "+ql.size()+" rows");
+		return ql;
+	}
 
-		Log.d("db helper", selectQuery+" --> "+c.getCount()+" rows");
+	/**
+	 * the cached characters, most recently used first, as they stand now, read in a window at a time as they're
+	 * asked for. the order is the ids as they stand when the list is first sized, so characters used after that
+	 * don't move up, or come into it, until the next one, and the positions of those already shown stay put.
+	 * characters evicted after that are null.
+	 * @param limit most characters in the list, or 0 for all of them
+	 * @param windowSize
+	 * @param maxWindows
+	 * @return
+	 */
+	public CharacterPages getCharacterPages(int limit, int windowSize, int maxWindows)
+	{
+		return new CharacterPages(pageSource(limit), windowSize, maxWindows);
+	}
+
+	/**
+	 * @param limit
+	 * @return the ids of the cached characters, most recently used first, and the characters for them
+	 */
+	private CharacterPages.Source pageSource(final int limit)
+	{
+		return new CharacterPages.Source() {
+			@Override
+			public int[] ids() {
+				String selectQuery = "SELECT " + KEY_ID + " FROM " + TABLE_CHARACTERS +
+						" ORDER BY " + KEY_LAST_ACCESS + " DESC," + KEY_ID;
+				if (limit > 0) {
+					selectQuery += " LIMIT " + limit;
+				}
+				Cursor c = db().rawQuery(selectQuery, null);
+				try {
+					int[] ids = new int[c.getCount()];
+					for (int i = 0; c.moveToNext(); i++) {
+						ids[i] = c.getInt(0);
+					}
+					return ids;
+				} finally {
+					c.close();
+				}
+			}
 
-		if (c.moveToFirst()) {
+			@Override
+			public List<Character> characters(int[] ids) {
+				StringBuilder in = new StringBuilder();
+				for (int id: ids) {
+					in.append(in.length() > 0? ",": "").append(id);
+				}
+				String selectQuery = "SELECT " + SQL_CHARACTER_COLUMNS + " FROM " + TABLE_CHARACTERS +
+						" WHERE " + KEY_ID + " IN (" + in + ")";
+				return cachedAtCursor(db().rawQuery(selectQuery, null)).characters;
+			}
+		};
+	}
+
+	/**
+	 * get the cached characters whose name starts with the given prefix, ignoring case, in name order as the api
+	 * gives them
+	 * @param prefix
+	 * @param limit maximum number of characters, or 0 for no limit
+	 * @return the characters found, with the oldest of their timestamps
+	 */
+	public CachedCharacters getCharactersMatching(String prefix, int limit)
+	{
+		String escaped = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+		String selectQuery = "SELECT " + SQL_CHARACTER_COLUMNS + " FROM " + TABLE_CHARACTERS +
+				" WHERE " + KEY_NAME + " LIKE ? ESCAPE '\\'"
+				+ " ORDER BY " + KEY_NAME;
+		if (limit > 0) {
+			selectQuery += " LIMIT " + limit;
+		}
+		return cachedAtCursor(db().rawQuery(selectQuery, new String[] { escaped + "%" }));
+	}
+
+	/**
+	 * search the names and descriptions of the cached characters for the words in the given text, each taken as the
+	 * prefix of a word. characters with every word in their name come first, then the rest, the most used first in
+	 * each group
+	 * @param text
+	 * @param limit
+	 * @return
+	 */
+	public CachedCharacters searchCharacters(String text, int limit)
+	{
+		String anywhere = FtsQuery.prefixMatch(text, null);
+		if (anywhere == null) {
+			return new CachedCharacters(new ArrayList<Character>(), Long.MAX_VALUE);
+		}
+		String selectQuery = "SELECT " + columns("c") + ", MIN(m.tier) AS best FROM " + TABLE_CHARACTERS + " c JOIN (" +
+					"SELECT docid, 0 AS tier FROM " + TABLE_CHARACTERS_FTS + " WHERE " + TABLE_CHARACTERS_FTS +
+						" MATCH ?" +
+					" UNION ALL " +
+					"SELECT docid, 1 AS tier FROM " + TABLE_CHARACTERS_FTS + " WHERE " + TABLE_CHARACTERS_FTS +
+						" MATCH ?" +
+				") m ON c." + KEY_DBKEY + " = m.docid" +
+				" GROUP BY c." + KEY_DBKEY +
+				" ORDER BY best, c." + KEY_HITS + " DESC, c." + KEY_NAME;
+		if (limit > 0) {
+			selectQuery += " LIMIT " + limit;
+		}
+		return cachedAtCursor(db().rawQuery(selectQuery,
+				new String[] { FtsQuery.prefixMatch(text, KEY_NAME), anywhere }));
+	}
+
+	/**
+	 * the answer to a query, if we have it, with its characters in the order that they came, whether or not it is
+	 * still fresh. the whole thing is read in the one statement, so that a write can't come between the query and
+	 * its characters
+	 * @param key the CharacterQuery key
+	 * @return the answer, or null if we don't have it, or have lost some of its characters to eviction
+	 */
+	public QueryResult getQueryResult(String key)
+	{
+		String selectQuery = "SELECT " + columns("c") + ",q." + KEY_TOTAL + ",q." + KEY_COUNT + ",q." + KEY_TIMESTAMP +
+				" FROM " + TABLE_QUERIES + " q" +
+				" LEFT JOIN " + TABLE_QUERY_RESULTS + " r ON r." + KEY_QUERY + " = q." + KEY_QUERY +
+				" LEFT JOIN " + TABLE_CHARACTERS + " c ON c." + KEY_ID + " = r." + KEY_ID +
+				" WHERE q." + KEY_QUERY + " = ?" +
+				" ORDER BY r." + KEY_POSITION;
+		Cursor c = db().rawQuery(selectQuery, new String[] { key });
+		try {
+			if (!c.moveToFirst()) {
+				return null;
+			}
+			int column = CHARACTER_COLUMNS.length;
+			int total = c.getInt(column);
+			int count = c.getInt(column + 1);
+			long fetched = c.getLong(column + 2);
+			ArrayList<Character> characters = new ArrayList<>(count);
 			do {
-				ql.add(characterAtCursor(c));
+				if (!c.isNull(COLUMN_ID)) {
+					characters.add(characterAtCursor(c));
+				}
 			} while (c.moveToNext());
+			if (characters.size() < count) {
+				return null;
+			}
+			return new QueryResult(characters, total, count, fetched);
+		} finally {
+			c.close();
 		}
-		db.close();
-		return ql;
 	}
 
 	/**
-	 * construct a character for the data at the current position of the given cursor
+	 * keep the answer to a query, writing its characters, in place of any answer that we had to it. only the most
+	 * recent few hundred answers are kept. the budgets are checked once the answer is down, and the eviction that
+	 * may follow leaves the answer's own characters alone, so that it isn't lost as soon as it's written
+	 * @param key the CharacterQuery key
+	 * @param total the total number of matches that the api has for the query
+	 * @param characters the matches that came back, in order
+	 * @return the number of characters added for the first time
+	 */
+	public synchronized int putQueryResult(String key, int total, List<Character> characters)
+	{
+		int added;
+		SQLiteDatabase db = db();
+		boolean written = false;
+		db.beginTransactionNonExclusive();
+		try {
+			added = upsertAll(characters);
+			// the delete trigger clears out the old answer's characters
+			db.execSQL("DELETE FROM " + TABLE_QUERIES + " WHERE " + KEY_QUERY + " = ?", new Object[] { key });
+			db.execSQL("INSERT INTO " + TABLE_QUERIES + "(" +
+					KEY_QUERY + "," + KEY_TOTAL + "," + KEY_COUNT + "," + KEY_TIMESTAMP + ") VALUES (?,?,?,?)",
+					new Object[] { key, total, characters.size(), System.currentTimeMillis() });
+			if (queryResultStatement == null) {
+				queryResultStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_QUERY_RESULTS + "(" +
+						KEY_QUERY + "," + KEY_POSITION + "," + KEY_ID + ") VALUES (?,?,?)");
+			}
+			for (int i = 0; i < characters.size(); i++) {
+				queryResultStatement.bindString(1, key);
+				queryResultStatement.bindLong(2, i);
+				queryResultStatement.bindLong(3, characters.get(i).id);
+				queryResultStatement.executeInsert();
+			}
+			db.execSQL("DELETE FROM " + TABLE_QUERIES + " WHERE " + KEY_QUERY + " NOT IN (SELECT " + KEY_QUERY +
+					" FROM " + TABLE_QUERIES + " ORDER BY " + KEY_TIMESTAMP + " DESC LIMIT " + MAX_QUERIES + ")");
+			checkBudget(characters);
+			db.setTransactionSuccessful();
+			written = true;
+		} finally {
+			db.endTransaction();
+			if (!written) {
+				memory.clear(); // it was written through ahead of the rollback
+				rowCount = -1;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * read all the characters from a query on the characters table, and close it
+	 * @param c
+	 * @return
+	 */
+	private CachedCharacters cachedAtCursor(Cursor c) {
+		ArrayList<Character> ql = new ArrayList<Character>();
+		long oldest = Long.MAX_VALUE;
+		try {
+			while (c.moveToNext()) {
+				ql.add(characterAtCursor(c));
+				oldest = Math.min(oldest, c.getLong(COLUMN_TIMESTAMP));
+			}
+		} finally {
+			c.close();
+		}
+		return new CachedCharacters(ql, oldest);
+	}
+
+	/**
+	 * @param alias table alias to qualify the columns with, or null
+	 * @return the CHARACTER_COLUMNS, as a list for a select
+	 */
+	private static String columns(String alias) {
+		StringBuilder columns = new StringBuilder();
+		for (String column: CHARACTER_COLUMNS) {
+			if (columns.length() > 0) {
+				columns.append(',');
+			}
+			if (alias != null) {
+				columns.append(alias).append('.');
+			}
+			columns.append(column);
+		}
+		return columns.toString();
+	}
+
+	/**
+	 * the character for the data at the current position of the given cursor, the one we hold in memory if there is
+	 * one, as it is written through and so no older than the row, or else a new one, which we then hold. the cursor
+	 * has to start with the CHARACTER_COLUMNS
 	 * @param c
 	 * @return
 	 */
 	@NonNull
 	private Character characterAtCursor(Cursor c) {
+		int id = c.getInt(COLUMN_ID);
+		Character held = memory.get(id);
+		if (held != null) {
+			return held;
+		}
 		Character character = new Character();
-		character.id = c.getInt(c.getColumnIndex(KEY_ID));
-		character.name = (c.getString(c.getColumnIndex(KEY_NAME)));
-		character.description = (c.getString(c.getColumnIndex(KEY_DESCRIPTION)));
-		character.thumbnail = new Image(
-				c.getString(c.getColumnIndex(KEY_IMAGE_PATH)),
-				c.getString(c.getColumnIndex(KEY_IMAGE_EXTENSION)));
+		character.id = id;
+		character.name = c.getString(COLUMN_NAME);
+		character.description = c.getString(COLUMN_DESCRIPTION);
+		character.thumbnail = new Image(c.getString(COLUMN_IMAGE_PATH), c.getString(COLUMN_IMAGE_EXTENSION));
+		memory.put(character);
 		return character;
 	}
 
 	/**
-	 * construct a ContentValues object from the given character data
+	 * bind the fields of a character to an insert or update statement, in the order of SQL_INSERT_CHARACTER
+	 * @param statement
 	 * @param character
-	 * @return
+	 * @param timestamp
+	 * @return the approximate size of the row, as bound
 	 */
-	@NonNull
-	private ContentValues values4Character(Character character) {
-		ContentValues values = new ContentValues();
-		values.put(KEY_ID, character.id);
-		values.put(KEY_NAME, character.name);
-		values.put(KEY_DESCRIPTION, character.description);
-		values.put(KEY_IMAGE_PATH, character.thumbnail.path);
-		values.put(KEY_IMAGE_EXTENSION, character.thumbnail.extension);
-		values.put(KEY_TIMESTAMP, System.currentTimeMillis());
-		return values;
+	private static int bindCharacter(SQLiteStatement statement, Character character, long timestamp) {
+		int size = sizeOf(character);
+		statement.clearBindings();
+		statement.bindLong(1, character.id);
+		bindString(statement, 2, character.name);
+		bindString(statement, 3, character.description);
+		bindString(statement, 4, character.thumbnail != null? character.thumbnail.path: null);
+		bindString(statement, 5, character.thumbnail != null? character.thumbnail.extension: null);
+		statement.bindLong(6, timestamp);
+		statement.bindLong(7, size);
+		return size;
+	}
+
+	/**
+	 * @param character
+	 * @return the approximate number of bytes that the character takes up in the db, counting the text twice, as the
+	 * full text index holds its own copy. near enough for a budget
+	 */
+	static int sizeOf(Character character) {
+		int size = ROW_OVERHEAD_BYTES + 2 * (length(character.name) + length(character.description));
+		if (character.thumbnail != null) {
+			size += length(character.thumbnail.path) + length(character.thumbnail.extension);
+		}
+		return size;
+	}
+
+	private static int length(String s) {
+		return s != null? s.length(): 0;
+	}
+
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
 	}
 
 	/**
-	 * updates the character in the default database, inserting it if it doesn't already exist
+	 * updates the character in the default database, inserting it if it doesn't already exist. There's no upsert
+	 * in the sqlite of older androids, and INSERT OR REPLACE would delete the row and give it a new key, so this is
+	 * a read of the stored size on the unique id, then an update if we hold the character, or an insert if not.
 	 * @param character
 	 * @return true if we are adding for the first time
 	 */
-	public boolean updateCharacter(Character character)
+	public synchronized boolean updateCharacter(Character character)
 	{
-		int key = getKey4Id(character.id);
-		if (key < 0) {
-			createCharacter(character);
-			Log.d("MarvelDBHelper", "creating new entry for "+character.name);
-			return true;
+		boolean added = upsert(character, System.currentTimeMillis());
+		if (added) {
+			checkBudget();
 		}
-		Log.d("MarvelDBHelper", "updating entry for "+character.name + " at key "+key);
+		return added;
+	}
 
-		SQLiteDatabase db = getWritableDatabase();
-		ContentValues values = values4Character(character);
-		Log.d("MarvelDBHelper", "update values "+values.toString());
-		int nRows = db.update(TABLE_CHARACTERS, values, KEY_DBKEY + " = ?", new String[] { String.valueOf(key) });
-		if (nRows != 1) {
-			Log.d("MarvelDBHelper", "update failed "+nRows);
+	/**
+	 * updates or inserts a whole page of characters, in one transaction, so one sync to disk rather than one for
+	 * each character, then checks the budgets the once. The characters are timestamped a millisecond apart
+	 * in page order, so that the page keeps its order at the top of the newest, with the first of it newest of all.
+	 * @param characters
+	 * @return the number of characters added for the first time
+	 */
+	public synchronized int updateCharacters(List<Character> characters)
+	{
+		int added;
+		SQLiteDatabase db = db();
+		boolean written = false;
+		db.beginTransactionNonExclusive();
+		try {
+			added = upsertAll(characters);
+			checkBudget();
+			db.setTransactionSuccessful();
+			written = true;
+		} finally {
+			db.endTransaction();
+			if (!written) {
+				memory.clear(); // it was written through ahead of the rollback
+				rowCount = -1;
+			}
 		}
-		db.close();
-		return false;
+		Log.d("MarvelDBHelper", "wrote page of "+characters.size()+", "+added+" new");
+		return added;
 	}
 
 	/**
-	 * trims to the most recent "limit" number of entries. Actually does this by deleting anything older than limit-th
-	 * oldest entry in the db. If there are any entries with the same timestamp, they would also be kept ... this is
-	 * incredibly unlikely, but won't in any case affect the functioning of the cache.
-	 *
-	 * @param limit
-	 * @return
+	 * upsert a page of characters, timestamped a millisecond apart in page order, without checking the budgets. only
+	 * to be used while holding the lock on the helper, in a transaction
+	 * @param characters
+	 * @return the number of characters added for the first time
+	 */
+	private int upsertAll(List<Character> characters)
+	{
+		int added = 0;
+		long timestamp = System.currentTimeMillis();
+		for (int i = 0; i < characters.size(); i++) {
+			if (upsert(characters.get(i), timestamp - i)) {
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * the update, or insert if need be, of a single character. the size of the row that is there already is read
+	 * first, on the unique index, so that the byte count stays exact. only to be used while holding the lock on
+	 * the helper
+	 * @param character
+	 * @param timestamp
+	 * @return true if we are adding for the first time
 	 */
-	public boolean trimToNewest(int limit) {
-		SQLiteDatabase db = getReadableDatabase();
-		db.delete(TABLE_CHARACTERS,
-				KEY_TIMESTAMP + " < " +
-						"(" + "SELECT " + KEY_TIMESTAMP + " FROM "+ TABLE_CHARACTERS +
-							" ORDER BY " + KEY_TIMESTAMP + " DESC " + " LIMIT 1 OFFSET " + limit + ")",
-				new String[] {}
-		);
-		db.close();
+	private boolean upsert(Character character, long timestamp)
+	{
+		if (sizeStatement == null) {
+			sizeStatement = db().compileStatement(SQL_CHARACTER_SIZE);
+		}
+		sizeStatement.bindLong(1, character.id);
+		long stored = sizeStatement.simpleQueryForLong();
+		if (stored >= 0) {
+			SQLiteStatement update = updateStatement();
+			int size = bindCharacter(update, character, timestamp);
+			update.bindLong(8, character.id);
+			update.executeUpdateDelete();
+			if (rowCount >= 0) {
+				byteCount += size - stored;
+			}
+			memory.put(character);
+			return false;
+		}
+		Log.d("MarvelDBHelper", "creating new entry for "+character.name);
+		SQLiteStatement insert = insertStatement();
+		int size = bindCharacter(insert, character, timestamp);
+		insert.bindLong(8, timestamp);
+		insert.executeInsert();
+		onInserted(size);
+		memory.put(character);
 		return true;
 	}
 
 	/**
-	 * trims db to the default amount
+	 * keep the counts up to date for a new row. only to be used while holding the lock on the helper
+	 * @param size
+	 */
+	private void onInserted(int size) {
+		if (rowCount >= 0) {
+			rowCount++;
+			byteCount += size;
+		}
+	}
+
+	/**
+	 * count the rows and bytes exactly. only to be used while holding the lock on the helper
+	 */
+	private void countRows() {
+		Cursor c = db().rawQuery("SELECT COUNT(*), IFNULL(SUM(" + KEY_SIZE + "),0) FROM " + TABLE_CHARACTERS, null);
+		try {
+			c.moveToFirst();
+			rowCount = c.getLong(0);
+			byteCount = c.getLong(1);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * whether the given number of new rows of the average size would still leave us within both budgets, ie could be
+	 * written without anything being evicted to make room
+	 * @param rows
 	 * @return
 	 */
-	public boolean trimToNewest() {
-		return trimToNewest(maxCharacters);
+	public synchronized boolean hasRoomFor(int rows) {
+		if (rowCount < 0) {
+			countRows();
+		}
+		long average = rowCount > 0? byteCount / rowCount: ROW_OVERHEAD_BYTES;
+		return rowCount + rows <= maxCharacters && byteCount + rows * average <= maxBytes;
+	}
+
+	/**
+	 * evict if we're over either budget. cheap enough to call after every write, as it only looks at the counts
+	 * we keep. only to be used while holding the lock on the helper
+	 */
+	private void checkBudget() {
+		checkBudget(null);
+	}
+
+	/**
+	 * evict if we're over either budget, but not the given characters
+	 * @param keep characters that mustn't go, or null
+	 */
+	private void checkBudget(List<Character> keep) {
+		if (rowCount < 0) {
+			countRows();
+		}
+		if (rowCount > maxCharacters || byteCount > maxBytes) {
+			evict(keep);
+		}
+	}
+
+	/**
+	 * evict the least recently used characters, fewest hits first among equals, a batch at a time, until we're
+	 * back under the low water mark of both budgets
+	 */
+	public synchronized void evict() {
+		evict(null);
+	}
+
+	/**
+	 * evict as evict(), but not the given characters, eg those of an answer that we have just written
+	 * @param keep characters that mustn't go, or null
+	 */
+	private synchronized void evict(List<Character> keep) {
+		String from = " FROM " + TABLE_CHARACTERS;
+		if (keep != null && !keep.isEmpty()) {
+			StringBuilder ids = new StringBuilder();
+			for (Character c: keep) {
+				ids.append(ids.length() > 0? ",": "").append(c.id);
+			}
+			from += " WHERE " + KEY_ID + " NOT IN (" + ids + ")";
+		}
+		if (rowCount < 0) {
+			countRows();
+		}
+		long targetRows = (long) maxCharacters * LOW_WATER_PERCENT / 100;
+		long targetBytes = maxBytes * LOW_WATER_PERCENT / 100;
+		long evicted = 0;
+		while (rowCount > targetRows || byteCount > targetBytes) {
+			long average = rowCount > 0? Math.max(1, byteCount / rowCount): 1;
+			long n = Math.max(rowCount - targetRows, (byteCount - targetBytes + average - 1) / average);
+			n = Math.max(1, Math.min(n, EVICTION_BATCH));
+			// the batch goes from memory too, so we read its ids, and its sizes while we're at it
+			Cursor c = db().rawQuery("SELECT " + KEY_ID + "," + KEY_SIZE + from + SQL_EVICTION_ORDER + n, null);
+			long rows = 0;
+			long bytes = 0;
+			try {
+				while (c.moveToNext()) {
+					memory.remove(c.getInt(0));
+					bytes += c.getLong(1);
+					rows++;
+				}
+			} finally {
+				c.close();
+			}
+			if (rows == 0) {
+				break;
+			}
+			db().execSQL("DELETE FROM " + TABLE_CHARACTERS + " WHERE " + KEY_DBKEY + " IN (SELECT " + KEY_DBKEY +
+					from + SQL_EVICTION_ORDER + n + ")");
+			rowCount -= rows;
+			byteCount -= bytes;
+			evicted += rows;
+		}
+		if (evicted > 0) {
+			Log.d("MarvelDBHelper", "evicted "+evicted+", now "+rowCount+" rows, "+byteCount+" bytes");
+		}
 	}
 
 }
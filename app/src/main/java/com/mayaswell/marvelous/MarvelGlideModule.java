@@ -0,0 +1,32 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
+import com.bumptech.glide.module.GlideModule;
+
+/**
+ * glide set up for the app, registered in the manifest. Decoded images live in a bounded memory cache, and bitmaps
+ * that drop out of it go to a bounded pool, to be decoded into again rather than allocated afresh, both sized
+ * from the screen and memory class of the device. Bitmaps are 16 bit, which halves their footprint, and is plenty
+ * for thumbnails and comic covers.
+ */
+public class MarvelGlideModule implements GlideModule {
+
+	@Override
+	public void applyOptions(Context context, GlideBuilder builder) {
+		MemorySizeCalculator calculator = new MemorySizeCalculator(context);
+		builder.setMemoryCache(new LruResourceCache(calculator.getMemoryCacheSize()))
+				.setBitmapPool(new LruBitmapPool(calculator.getBitmapPoolSize()))
+				.setDecodeFormat(DecodeFormat.PREFER_RGB_565);
+	}
+
+	@Override
+	public void registerComponents(Context context, Glide glide) {
+	}
+}
@@ -0,0 +1,93 @@
+package com.mayaswell.marvelous;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * the one process wide okhttp client. every MarvelAPI builds on it, so they all share the same connection pool,
+ * dispatcher and response cache, whatever the number of instances (eg one per activity recreation). Also offers a
+ * pre-warm, which sets up a connection to the api host in the background, so the first real call doesn't pay for
+ * dns, tcp and tls setup.
+ */
+public class MarvelHttp {
+
+	private static final int MAX_IDLE_CONNECTIONS = 4;
+	private static final long KEEP_ALIVE_MINUTES = 5;
+	private static final long CONNECT_TIMEOUT_SECONDS = 10;
+	private static final long READ_TIMEOUT_SECONDS = 20;
+	private static final long WRITE_TIMEOUT_SECONDS = 10;
+
+	private static OkHttpClient client = null;
+	private static boolean prewarmed = false;
+
+	/**
+	 * @return the shared client, made without a response cache if it doesn't exist yet
+	 */
+	public static synchronized OkHttpClient client() {
+		return client(null, 0);
+	}
+
+	/**
+	 * get the shared client, making it with a response cache in the given directory if it doesn't exist yet. There
+	 * can only be one cache on a directory, so the first call to set up the client fixes the cache for the process.
+	 * @param cacheDir directory for the response cache, or null for no cache
+	 * @param cacheSize maximum size of the response cache in bytes
+	 * @return
+	 */
+	public static synchronized OkHttpClient client(File cacheDir, long cacheSize) {
+		if (client == null) {
+			client = new OkHttpClient.Builder()
+					.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+					.connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					.readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					.writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					.cache(cacheDir != null && cacheSize > 0? new Cache(cacheDir, cacheSize): null)
+					.build();
+		}
+		return client;
+	}
+
+	/**
+	 * open a connection to the host of the given url in the background, and leave it in the pool for the first
+	 * real call. only the first call in the process does anything. This is an unsigned HEAD request to the root of
+	 * the host, which the api turns away, but all we're after is the connection. the api is on https, so that's
+	 * the tls handshake done too, as long as the url is an https one, as the calls will be.
+	 * @param url
+	 */
+	public static synchronized void prewarm(String url) {
+		if (prewarmed) {
+			return;
+		}
+		HttpUrl root = HttpUrl.parse(url);
+		if (root == null) {
+			Log.d("MarvelHttp", "can't pre-warm bad url "+url);
+			return;
+		}
+		prewarmed = true;
+		Request request = new Request.Builder().url(root.resolve("/")).head().build();
+		client().newCall(request).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				Log.d("MarvelHttp", "pre-warm failed, "+e.getMessage());
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) throws IOException {
+				Log.d("MarvelHttp", "pre-warmed connection, code "+response.code());
+				response.close();
+			}
+		});
+	}
+}
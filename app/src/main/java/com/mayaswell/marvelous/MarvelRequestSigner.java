@@ -0,0 +1,136 @@
+package com.mayaswell.marvelous;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import okhttp3.HttpUrl;
+
+/**
+ * builds and signs the urls for Marvel API requests. The base url is parsed just the once, and as the api's ts
+ * parameter only changes once a second, the md5 signature is worked out once for each second and reused by every
+ * request made during it. Hex encoding goes straight into a char buffer, without the intermediate strings of the
+ * commons codec path.
+ */
+public class MarvelRequestSigner {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * the ts and hash for a particular second
+	 */
+	static class Signature {
+		final long second;
+		final String ts;
+		final String hash;
+
+		Signature(long second, String ts, String hash) {
+			this.second = second;
+			this.ts = ts;
+			this.hash = hash;
+		}
+	}
+
+	private final byte[] keyBytes; // privateKey + apiKey, as it follows ts in the hashed string
+	private final HttpUrl baseUrl; // the base url with the api key already in place
+	private final HttpUrl charactersUrl;
+	private volatile Signature current = new Signature(Long.MIN_VALUE, null, null);
+
+	/**
+	 * @param urlBase base url of the api
+	 * @param apiKey
+	 * @param privateKey
+	 */
+	public MarvelRequestSigner(String urlBase, String apiKey, String privateKey) {
+		HttpUrl base = HttpUrl.parse(urlBase);
+		if (base == null) {
+			throw new RuntimeException("request builder fails on "+urlBase);
+		}
+		baseUrl = base.newBuilder()
+				.addQueryParameter("apikey", apiKey)
+				.build();
+		charactersUrl = baseUrl.newBuilder()
+				.addEncodedPathSegment("characters")
+				.build();
+		keyBytes = (privateKey + apiKey).getBytes(UTF8);
+	}
+
+	/**
+	 * @return a builder for an unsigned url on the characters endpoint, with the api key already in place
+	 */
+	public HttpUrl.Builder charactersUrl() {
+		return charactersUrl.newBuilder();
+	}
+
+	/**
+	 * @param segments path segments below the base url, eg "characters", "1009610", "comics"
+	 * @return a builder for an unsigned url on the given endpoint, with the api key already in place
+	 */
+	public HttpUrl.Builder url(String... segments) {
+		HttpUrl.Builder b = baseUrl.newBuilder();
+		for (String segment: segments) {
+			b.addPathSegment(segment);
+		}
+		return b;
+	}
+
+	/**
+	 * add the ts and hash parameters for the current second to the given url
+	 * @param url
+	 * @return
+	 */
+	public HttpUrl sign(HttpUrl url) {
+		Signature s = signature(System.currentTimeMillis() / 1000);
+		return url.newBuilder()
+				.addQueryParameter("ts", s.ts)
+				.addQueryParameter("hash", s.hash)
+				.build();
+	}
+
+	/**
+	 * get the signature for the given second, working it out only if the second has changed
+	 * @param second
+	 * @return
+	 */
+	Signature signature(long second) {
+		Signature s = current;
+		if (s.second != second) {
+			String ts = Long.toString(second);
+			s = new Signature(second, ts, md5Hex(ts));
+			current = s;
+		}
+		return s;
+	}
+
+	/**
+	 * md5 of ts + privateKey + apiKey as lower case hex
+	 * @param ts
+	 * @return
+	 */
+	private String md5Hex(String ts) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("no md5 available");
+		}
+		digest.update(ts.getBytes(UTF8));
+		digest.update(keyBytes);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * lower case hex encoding of the given bytes
+	 * @param bytes
+	 * @return
+	 */
+	static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0, j = 0; i < bytes.length; i++) {
+			hex[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[j++] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,246 @@
+package com.mayaswell.marvelous;
+
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * client side governor for the Marvel API call quota. every call takes a token from a bucket, which holds at most
+ * 'burst' tokens and refills at a steady rate, and counts against a daily budget. Background traffic (prefetch,
+ * catalog crawl) can only take tokens while the bucket is above the reserve kept for interactive calls, and can
+ * only use its share of the daily budget, so it never starves a user waiting on a search. A call that never reaches
+ * the server, eg because the http cache answered it, gets its token back. Given a store, the day's counts are kept
+ * in it, so the daily budget holds across restarts of the process.
+ */
+public class QuotaGovernor {
+
+	public enum Priority {
+		INTERACTIVE,
+		BACKGROUND
+	}
+
+	/**
+	 * thrown when a call would go over the daily budget, or the background share of it
+	 */
+	public static class QuotaExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public QuotaExceededException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * snapshot of the budget counters
+	 */
+	public static class Counters {
+		public final int dailyBudget;
+		public final int usedToday;
+		public final int backgroundUsedToday;
+		public final int tokens;
+		public final int throttled;
+
+		Counters(int dailyBudget, int usedToday, int backgroundUsedToday, int tokens, int throttled) {
+			this.dailyBudget = dailyBudget;
+			this.usedToday = usedToday;
+			this.backgroundUsedToday = backgroundUsedToday;
+			this.tokens = tokens;
+			this.throttled = throttled;
+		}
+
+		@Override
+		public String toString() {
+			return "used "+usedToday+"/"+dailyBudget+" ("+backgroundUsedToday+" background), tokens "+tokens
+					+", throttled "+throttled;
+		}
+	}
+
+	/**
+	 * somewhere to keep the day's counts between runs
+	 */
+	public interface Store {
+		/**
+		 * @return the day that the stored counts are for, in days since the epoch, or -1 if there are none
+		 */
+		long getDay();
+		int getUsed();
+		int getBackgroundUsed();
+		void put(long day, int used, int backgroundUsed);
+	}
+
+	private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+	private final int dailyBudget;
+	private final int burst;
+	private final double refillPerMs;
+	private final int backgroundBudget;
+	private final double backgroundReserve;
+	private final Store store;
+
+	private double tokens;
+	private long lastRefill;
+	private long day;
+	private int usedToday = 0;
+	private int backgroundUsedToday = 0;
+	private int throttled = 0;
+	private long holdUntil = 0;
+
+	/**
+	 * @param dailyBudget calls allowed each day
+	 * @param burst most calls that can go out back to back
+	 * @param refillPerSecond rate at which the burst allowance comes back
+	 * @param backgroundShare fraction, 0 to 1, of both the daily budget and the bucket that background calls may use
+	 */
+	public QuotaGovernor(int dailyBudget, int burst, double refillPerSecond, double backgroundShare) {
+		this(dailyBudget, burst, refillPerSecond, backgroundShare, null);
+	}
+
+	/**
+	 * @param dailyBudget calls allowed each day
+	 * @param burst most calls that can go out back to back
+	 * @param refillPerSecond rate at which the burst allowance comes back
+	 * @param backgroundShare fraction, 0 to 1, of both the daily budget and the bucket that background calls may use
+	 * @param store where the day's counts are kept between runs, or null to keep them in memory only
+	 */
+	public QuotaGovernor(int dailyBudget, int burst, double refillPerSecond, double backgroundShare, Store store) {
+		this.dailyBudget = dailyBudget;
+		this.burst = burst > 0? burst: 1;
+		this.refillPerMs = refillPerSecond / 1000;
+		this.backgroundBudget = (int) (dailyBudget * backgroundShare);
+		this.backgroundReserve = Math.min(this.burst - 1, this.burst * (1 - backgroundShare));
+		this.tokens = this.burst;
+		this.lastRefill = now();
+		this.day = lastRefill / DAY_MS;
+		this.store = store;
+		if (store != null && store.getDay() == day) {
+			usedToday = store.getUsed();
+			backgroundUsedToday = store.getBackgroundUsed();
+		}
+	}
+
+	/**
+	 * @return current time in ms
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * take a token for a call of the given priority, waiting for one if need be. the wait is on a timer, not a
+	 * thread, and is dropped on unsubscribing
+	 * @param priority
+	 * @param scheduler scheduler for the timer
+	 * @return emits the priority once we have the token, or a QuotaExceededException if the daily budget for this
+	 * 	priority is used up
+	 */
+	public Observable<Priority> acquire(final Priority priority, final Scheduler scheduler) {
+		return Observable.defer(new Func0<Observable<Priority>>() {
+			@Override
+			public Observable<Priority> call() {
+				long wait = tryAcquire(priority);
+				if (wait <= 0) {
+					return Observable.just(priority);
+				}
+				return Observable.timer(wait, TimeUnit.MILLISECONDS, scheduler)
+						.concatMap(new Func1<Long, Observable<Priority>>() {
+							@Override
+							public Observable<Priority> call(Long tick) {
+								return acquire(priority, scheduler);
+							}
+						});
+			}
+		});
+	}
+
+	/**
+	 * try to take a token for a call of the given priority without waiting
+	 * @param priority
+	 * @return 0 if we have a token, otherwise the ms to wait before trying again
+	 * @throws QuotaExceededException if the daily budget for this priority is used up
+	 */
+	public synchronized long tryAcquire(Priority priority) {
+		long t = now();
+		refill(t);
+		boolean background = priority == Priority.BACKGROUND;
+		if (usedToday >= dailyBudget || (background && backgroundUsedToday >= backgroundBudget)) {
+			throw new QuotaExceededException("Daily call budget used up, "+usedToday+" calls");
+		}
+		if (t < holdUntil) {
+			return holdUntil - t;
+		}
+		double floor = background? backgroundReserve: 0;
+		if (tokens - floor >= 1) {
+			tokens -= 1;
+			usedToday++;
+			if (background) {
+				backgroundUsedToday++;
+			}
+			save();
+			return 0;
+		}
+		if (refillPerMs <= 0) {
+			return 1000;
+		}
+		return Math.max(1, (long) Math.ceil((floor + 1 - tokens) / refillPerMs));
+	}
+
+	/**
+	 * give back the token taken for a call that didn't reach the server after all
+	 * @param priority
+	 */
+	public synchronized void refund(Priority priority) {
+		refill(now());
+		tokens = Math.min(burst, tokens + 1);
+		if (usedToday > 0) {
+			usedToday--;
+		}
+		if (priority == Priority.BACKGROUND && backgroundUsedToday > 0) {
+			backgroundUsedToday--;
+		}
+		save();
+	}
+
+	/**
+	 * the server has told us to slow down: empty the bucket and hold all calls for the given time
+	 * @param holdMs
+	 */
+	public synchronized void onRateLimited(long holdMs) {
+		throttled++;
+		tokens = 0;
+		holdUntil = Math.max(holdUntil, now() + holdMs);
+	}
+
+	/**
+	 * @return a snapshot of the budget counters
+	 */
+	public synchronized Counters getCounters() {
+		refill(now());
+		return new Counters(dailyBudget, usedToday, backgroundUsedToday, (int) tokens, throttled);
+	}
+
+	/**
+	 * top up the bucket for the time passed, and reset the daily counts if we've moved on a day
+	 * @param t
+	 */
+	private void refill(long t) {
+		if (t / DAY_MS != day) {
+			day = t / DAY_MS;
+			usedToday = 0;
+			backgroundUsedToday = 0;
+			save();
+		}
+		if (t > lastRefill) {
+			tokens = Math.min(burst, tokens + (t - lastRefill) * refillPerMs);
+			lastRefill = t;
+		}
+	}
+
+	private void save() {
+		if (store != null) {
+			store.put(day, usedToday, backgroundUsedToday);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * keeps the quota governor's counts for the day in shared preferences, so that the daily budget survives the
+ * process being killed
+ */
+public class QuotaPreferences implements QuotaGovernor.Store {
+
+	private static final String PREFERENCES = "quotaGovernor";
+	private static final String KEY_DAY = "day";
+	private static final String KEY_USED = "usedToday";
+	private static final String KEY_BACKGROUND_USED = "backgroundUsedToday";
+
+	private final SharedPreferences preferences;
+
+	/**
+	 * @param context
+	 */
+	public QuotaPreferences(Context context) {
+		this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	@Override
+	public long getDay() {
+		return preferences.getLong(KEY_DAY, -1);
+	}
+
+	@Override
+	public int getUsed() {
+		return preferences.getInt(KEY_USED, 0);
+	}
+
+	@Override
+	public int getBackgroundUsed() {
+		return preferences.getInt(KEY_BACKGROUND_USED, 0);
+	}
+
+	@Override
+	public void put(long day, int used, int backgroundUsed) {
+		preferences.edit()
+				.putLong(KEY_DAY, day)
+				.putInt(KEY_USED, used)
+				.putInt(KEY_BACKGROUND_USED, backgroundUsed)
+				.apply();
+	}
+}
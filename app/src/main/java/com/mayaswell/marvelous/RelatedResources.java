@@ -0,0 +1,355 @@
+package com.mayaswell.marvelous;
+
+import android.util.Log;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.Resource;
+import com.mayaswell.marvelous.MarvelAPI.ResourceContainer;
+import com.mayaswell.marvelous.MarvelAPI.ResourceList;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * fetches the comics, series and events related to a character. Pages of each kind go out a few at a time in
+ * parallel, and are streamed back as they arrive, so a detail view can fill in before the last page is in. When
+ * the character carries its resource summaries, we know how many pages there are up front and they all fan out at
+ * once; otherwise the first page tells us. A list is known by its collection, ie the character and the kind. A
+ * lookup of a list that is already on its way joins it, and finished lists are remembered, so going back to a
+ * character doesn't cost any more calls. Resources shared between characters (a team comic, say) still come back in
+ * each character's list, as the api has no other way to tell us which are in it, but they are kept as the one object
+ * for their id. Finished lists and shared resources are only kept for the freshness ttl, after which the lists are
+ * fetched again, and the resources in them replaced.
+ */
+public class RelatedResources {
+
+	public enum Kind {
+		COMICS("comics"),
+		SERIES("series"),
+		EVENTS("events");
+
+		final String path;
+
+		Kind(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * a page of related resources of one kind, with the total number that the character has of that kind
+	 */
+	public static class RelatedPage {
+		public final Kind kind;
+		public final int total;
+		public final List<Resource> resources;
+
+		RelatedPage(Kind kind, int total, List<Resource> resources) {
+			this.kind = kind;
+			this.total = total;
+			this.resources = resources;
+		}
+	}
+
+	/**
+	 * a finished list of resources of one kind for a character
+	 */
+	private static class RelatedList {
+		final int total;
+		final ArrayList<Resource> resources;
+		final long fetched;
+
+		RelatedList(int total, ArrayList<Resource> resources, long fetched) {
+			this.total = total;
+			this.resources = resources;
+			this.fetched = fetched;
+		}
+	}
+
+	/**
+	 * a resource that we hold as the one object for its id, and when it came
+	 */
+	private static class SharedResource {
+		final Resource resource;
+		final long fetched;
+
+		SharedResource(Resource resource, long fetched) {
+			this.resource = resource;
+			this.fetched = fetched;
+		}
+	}
+
+	public static final int PAGE_SIZE = 25;
+	private static final int MAX_SHARED_RESOURCES = 1000;
+	private static final int MAX_CACHED_LISTS = 64;
+
+	private final MarvelAPI marvelAPI;
+	private final int parallelism;
+	private final int maxResults;
+	private final long ttlMs;
+
+	private final LinkedHashMap<Integer, SharedResource> sharedResources =
+			new LinkedHashMap<Integer, SharedResource>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, SharedResource> eldest) {
+					return size() > MAX_SHARED_RESOURCES;
+				}
+			};
+	private final HashMap<String, Observable<RelatedPage>> inFlight = new HashMap<>();
+	private final LinkedHashMap<String, RelatedList> finishedLists =
+			new LinkedHashMap<String, RelatedList>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, RelatedList> eldest) {
+					return size() > MAX_CACHED_LISTS;
+				}
+			};
+
+	/**
+	 * @param marvelAPI
+	 * @param parallelism maximum number of pages of each kind in flight at once
+	 * @param maxResults most resources of each kind that we fetch for a character. some characters have thousands
+	 *                   of comics, and we don't want to spend the day's quota on them
+	 * @param ttlMs how long a finished list, or a shared resource, is fresh enough to use without fetching it again
+	 */
+	public RelatedResources(MarvelAPI marvelAPI, int parallelism, int maxResults, long ttlMs) {
+		this.marvelAPI = marvelAPI;
+		this.parallelism = parallelism > 0? parallelism: 1;
+		this.maxResults = maxResults > 0? maxResults: PAGE_SIZE;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * stream the resources of the given kinds related to a character, a page at a time, observed on the main
+	 * thread. pages of different kinds arrive interleaved, and pages of a kind in whatever order they come back.
+	 * unsubscribing cancels all the calls still under way.
+	 * @param c
+	 * @param kinds
+	 * @return
+	 */
+	public Observable<RelatedPage> get(Character c, Kind... kinds) {
+		ArrayList<Observable<RelatedPage>> byKind = new ArrayList<>();
+		for (Kind kind: kinds) {
+			byKind.add(get(c, kind));
+		}
+		return Observable.merge(byKind)
+				.observeOn(AndroidSchedulers.mainThread());
+	}
+
+	/**
+	 * stream the resources of one kind related to a character, a page at a time, on no particular thread. this is
+	 * the remembered list if we have it, or the list on its way if there is one, with the pages that are already in
+	 * @param c
+	 * @param kind
+	 * @return
+	 */
+	private Observable<RelatedPage> get(final Character c, final Kind kind) {
+		return Observable.defer(new Func0<Observable<RelatedPage>>() {
+			@Override
+			public Observable<RelatedPage> call() {
+				final String key = collection(c, kind);
+				RelatedList finished;
+				synchronized (finishedLists) {
+					finished = finishedLists.get(key);
+					if (finished != null && System.currentTimeMillis() - finished.fetched >= ttlMs) {
+						finishedLists.remove(key);
+						finished = null;
+					}
+				}
+				if (finished != null) {
+					return Observable.just(new RelatedPage(kind, finished.total, finished.resources));
+				}
+				synchronized (inFlight) {
+					Observable<RelatedPage> joined = inFlight.get(key);
+					if (joined != null) {
+						Log.d("RelatedResources", "joining "+key+" in flight");
+						return joined;
+					}
+					final AtomicReference<Observable<RelatedPage>> self = new AtomicReference<>();
+					Action0 release = new Action0() {
+						@Override
+						public void call() {
+							synchronized (inFlight) {
+								if (inFlight.get(key) == self.get()) {
+									inFlight.remove(key);
+								}
+							}
+						}
+					};
+					Observable<RelatedPage> shared = fetchList(c, kind, key)
+							.doOnTerminate(release)
+							.doOnUnsubscribe(release)
+							.replay()
+							.refCount();
+					self.set(shared);
+					inFlight.put(key, shared);
+					return shared;
+				}
+			}
+		});
+	}
+
+	/**
+	 * fetch the whole list of one kind for a character, and remember it once it's finished
+	 * @param c
+	 * @param kind
+	 * @param key the collection that the list is remembered under
+	 * @return
+	 */
+	private Observable<RelatedPage> fetchList(final Character c, final Kind kind, final String key) {
+		final ArrayList<Resource> collected = new ArrayList<>();
+		final HashSet<Integer> seen = new HashSet<>();
+		final int[] total = { 0 };
+		return fetchAll(c, kind)
+				.map(new Func1<RelatedPage, RelatedPage>() {
+					@Override
+					public RelatedPage call(RelatedPage page) {
+						// pages can overlap if the catalog shifts under us, so only pass on what's new
+						ArrayList<Resource> fresh = new ArrayList<>(page.resources.size());
+						synchronized (collected) {
+							for (Resource r: page.resources) {
+								if (seen.add(r.id)) {
+									fresh.add(r);
+									collected.add(r);
+								}
+							}
+							total[0] = page.total;
+						}
+						return new RelatedPage(kind, page.total, fresh);
+					}
+				})
+				.doOnCompleted(new Action0() {
+					@Override
+					public void call() {
+						synchronized (finishedLists) {
+							finishedLists.put(key, new RelatedList(total[0], collected, System.currentTimeMillis()));
+						}
+						Log.d("RelatedResources", "got "+collected.size()+" "+kind.path+" for "+c.name);
+					}
+				});
+	}
+
+	/**
+	 * fan out the page requests for one kind, at most 'parallelism' of them in flight at once
+	 * @param c
+	 * @param kind
+	 * @return
+	 */
+	private Observable<RelatedPage> fetchAll(final Character c, final Kind kind) {
+		ResourceList summary = summary(c, kind);
+		if (summary != null) {
+			if (summary.available == 0) {
+				return Observable.just(new RelatedPage(kind, 0, new ArrayList<Resource>()));
+			}
+			return fetchPages(c.id, kind, 0, summary.available);
+		}
+		return fetchPage(c.id, kind, 0)
+				.concatMap(new Func1<RelatedPage, Observable<RelatedPage>>() {
+					@Override
+					public Observable<RelatedPage> call(RelatedPage first) {
+						return Observable.just(first).concatWith(fetchPages(c.id, kind, PAGE_SIZE, first.total));
+					}
+				});
+	}
+
+	/**
+	 * fetch the pages from 'from' up to the given total, or maxResults, whichever comes first
+	 * @param characterId
+	 * @param kind
+	 * @param from
+	 * @param total
+	 * @return
+	 */
+	private Observable<RelatedPage> fetchPages(final int characterId, final Kind kind, int from, int total) {
+		ArrayList<Integer> offsets = new ArrayList<>();
+		for (int offset = from; offset < total && offset < maxResults; offset += PAGE_SIZE) {
+			offsets.add(offset);
+		}
+		return Observable.from(offsets)
+				.flatMap(new Func1<Integer, Observable<RelatedPage>>() {
+					@Override
+					public Observable<RelatedPage> call(Integer offset) {
+						return fetchPage(characterId, kind, offset);
+					}
+				}, parallelism);
+	}
+
+	/**
+	 * fetch a single page of one kind
+	 * @param characterId
+	 * @param kind
+	 * @param offset
+	 * @return
+	 */
+	private Observable<RelatedPage> fetchPage(int characterId, final Kind kind, int offset) {
+		return marvelAPI.getResources(characterId, kind.path, PAGE_SIZE, offset, Schedulers.immediate(),
+				Priority.INTERACTIVE)
+				.map(new Func1<ResourceContainer, RelatedPage>() {
+					@Override
+					public RelatedPage call(ResourceContainer container) {
+						return new RelatedPage(kind, container.total, share(container.results));
+					}
+				});
+	}
+
+	/**
+	 * swap each resource for the one we already hold with the same id, if any, and it is still fresh. the coalesced
+	 * container is shared between subscribers, so we build a new list rather than touch its results.
+	 * @param resources
+	 * @return
+	 */
+	private List<Resource> share(List<Resource> resources) {
+		ArrayList<Resource> shared = new ArrayList<>(resources.size());
+		long now = System.currentTimeMillis();
+		synchronized (sharedResources) {
+			for (Resource r: resources) {
+				SharedResource held = sharedResources.get(r.id);
+				if (held == null || now - held.fetched >= ttlMs) {
+					held = new SharedResource(r, now);
+					sharedResources.put(r.id, held);
+				}
+				shared.add(held.resource);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * the key of a character's list of one kind, as the path of its collection uri, which is the same whether or not
+	 * the character carries its summaries
+	 * @param c
+	 * @param kind
+	 * @return
+	 */
+	private static String collection(Character c, Kind kind) {
+		return "characters/"+c.id+"/"+kind.path;
+	}
+
+	/**
+	 * @param c
+	 * @param kind
+	 * @return the character's summary for the given kind, or null if it has none, eg if it came from the db
+	 */
+	private static ResourceList summary(Character c, Kind kind) {
+		switch (kind) {
+			case COMICS:
+				return c.comics;
+			case SERIES:
+				return c.series;
+			case EVENTS:
+				return c.events;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,110 @@
+package com.mayaswell.marvelous;
+
+import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.bumptech.glide.DrawableRequestBuilder;
+import com.bumptech.glide.ListPreloader;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * loads the thumbnails of the next few rows of a character list into the memory cache as it scrolls, so they are
+ * ready to draw when the rows come on screen. This drives glide's own ListPreloader, which is written for list
+ * views, from the scroll events of a RecyclerView. The preload requests are built exactly as the row loads are, so
+ * that the rows hit the cache. Once the list settles, the detail images of the rows on screen, the likely next views,
+ * are prefetched as well; nothing is prefetched for rows that only fly past in a fling.
+ */
+public class ThumbnailPreloader extends RecyclerView.OnScrollListener {
+
+	private final LinearLayoutManager layoutManager;
+	private final CharacterAdapter adapter;
+	private final CharacterImages images;
+	private final ListPreloader<Character> preloader;
+
+	/**
+	 * @param context
+	 * @param layoutManager layout manager of the list
+	 * @param adapter adapter of the list
+	 * @param images
+	 * @param maxPreload number of rows to load ahead of those on screen
+	 */
+	public ThumbnailPreloader(final Context context, LinearLayoutManager layoutManager, final CharacterAdapter adapter,
+			final CharacterImages images, int maxPreload) {
+		this.layoutManager = layoutManager;
+		this.adapter = adapter;
+		this.images = images;
+		preloader = new ListPreloader<>(new ListPreloader.PreloadModelProvider<Character>() {
+			@Override
+			public List<Character> getPreloadItems(int position) {
+				if (position < 0 || position >= adapter.getItemCount()) {
+					return Collections.emptyList();
+				}
+				Character c = adapter.getCharacter(position);
+				if (c == null) {
+					return Collections.emptyList();
+				}
+				return Collections.singletonList(c);
+			}
+
+			@Override
+			public DrawableRequestBuilder<String> getPreloadRequestBuilder(Character c) {
+				return images.thumbnailRequest(context, c);
+			}
+		}, new ListPreloader.PreloadSizeProvider<Character>() {
+			@Override
+			public int[] getPreloadSize(Character c, int adapterPosition, int perItemPosition) {
+				if (c.thumbnail == null) {
+					return null; // nothing to load
+				}
+				return new int[] { images.getThumbnailPx(), images.getThumbnailPx() };
+			}
+		}, maxPreload);
+	}
+
+	/**
+	 * also called with no scroll when a new list is laid out, which is when we prefetch for the first rows
+	 * @param recyclerView
+	 * @param dx
+	 * @param dy
+	 */
+	@Override
+	public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+		int first = layoutManager.findFirstVisibleItemPosition();
+		int last = layoutManager.findLastVisibleItemPosition();
+		if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+			return;
+		}
+		preloader.onScroll(null, first, last - first + 1, adapter.getItemCount());
+		if (recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+			prefetchVisible();
+		}
+	}
+
+	@Override
+	public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+		if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+			prefetchVisible();
+		}
+	}
+
+	/**
+	 * prefetch the detail images of the rows on screen
+	 */
+	private void prefetchVisible() {
+		int first = layoutManager.findFirstVisibleItemPosition();
+		int last = layoutManager.findLastVisibleItemPosition();
+		if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+			return;
+		}
+		for (int i = first; i <= last && i < adapter.getItemCount(); i++) {
+			Character c = adapter.getCharacter(i);
+			if (c != null) {
+				images.prefetchDetail(c);
+			}
+		}
+	}
+}
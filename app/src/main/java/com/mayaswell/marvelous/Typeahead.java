@@ -0,0 +1,260 @@
+package com.mayaswell.marvelous;
+
+import android.util.Log;
+
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.CharacterContainer;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.MarvelDBHelper.QueryResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Func1;
+
+/**
+ * search as you type on character names. Text changes are debounced, too short a prefix isn't looked up, and only
+ * the latest prefix counts: a lookup still under way when the text changes again is dropped, and its http call
+ * cancelled. A prefix whose matches all came back in the one page is remembered, and any longer prefix that starts
+ * with it is answered from those matches, without another call. Given the db cache, a prefix that has to go to the
+ * api is first answered from the cache's full text index, straight away, and the api's answer follows when it comes
+ * in, and is written to the cache, so that it can be searched offline after. The api's answer to the prefix is
+ * kept as well, and while it is fresh, the prefix is answered with it, and the api isn't asked at all.
+ */
+public class Typeahead {
+
+	/**
+	 * the outcome of looking up a prefix. characters is null if the prefix was too short to look up, and error is
+	 * set if the lookup failed. local is set if the characters came from memory or the db, rather than the api
+	 */
+	public static class Result {
+		public final String query;
+		public final ArrayList<Character> characters;
+		public final boolean local;
+		public final Throwable error;
+
+		Result(String query, ArrayList<Character> characters, boolean local, Throwable error) {
+			this.query = query;
+			this.characters = characters;
+			this.local = local;
+			this.error = error;
+		}
+	}
+
+	private static final int MAX_COMPLETE_RESULTS = 16;
+
+	private final MarvelAPI marvelAPI;
+	private final MarvelDBHelper cachedDB;
+	private final long ttlMs;
+	private final int minLength;
+	private final int limit;
+
+	/**
+	 * complete match lists, by lower case prefix
+	 */
+	private final LinkedHashMap<String, ArrayList<Character>> complete =
+			new LinkedHashMap<String, ArrayList<Character>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Character>> eldest) {
+					return size() > MAX_COMPLETE_RESULTS;
+				}
+			};
+
+	/**
+	 * @param marvelAPI
+	 * @param minLength shortest prefix that we look up
+	 * @param limit page size of a lookup. the bigger it is, the more prefixes come back complete and can be refined
+	 *              locally, up to the api's maximum of 100
+	 */
+	public Typeahead(MarvelAPI marvelAPI, int minLength, int limit) {
+		this(marvelAPI, null, 0, minLength, limit);
+	}
+
+	/**
+	 * @param marvelAPI
+	 * @param cachedDB db cache to search while we wait on the api, and to write what the api sends back to, or null
+	 * @param ttlMs how long the api's answer to a prefix is fresh enough to use in place of asking again
+	 * @param minLength shortest prefix that we look up
+	 * @param limit page size of a lookup, and most matches taken from the db
+	 */
+	public Typeahead(MarvelAPI marvelAPI, MarvelDBHelper cachedDB, long ttlMs, int minLength, int limit) {
+		this.marvelAPI = marvelAPI;
+		this.cachedDB = cachedDB;
+		this.ttlMs = ttlMs;
+		this.minLength = minLength > 0? minLength: 1;
+		this.limit = limit;
+	}
+
+	/**
+	 * look up each settled value of the given text, observed on the main thread
+	 * @param text stream of text changes, eg RxTextView.textChanges()
+	 * @param debounceMs how long the text has to stay the same before we look it up
+	 * @param scheduler scheduler for the debounce timer
+	 * @return
+	 */
+	public Observable<Result> search(Observable<? extends CharSequence> text, long debounceMs, Scheduler scheduler) {
+		return text
+				.map(new Func1<CharSequence, String>() {
+					@Override
+					public String call(CharSequence s) {
+						return s.toString().trim().toLowerCase(Locale.US);
+					}
+				})
+				.debounce(debounceMs, TimeUnit.MILLISECONDS, scheduler)
+				.distinctUntilChanged()
+				.switchMap(new Func1<String, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(String query) {
+						return lookup(query);
+					}
+				})
+				.observeOn(AndroidSchedulers.mainThread());
+	}
+
+	/**
+	 * look up a single prefix, locally if we can
+	 * @param query a trimmed, lower case prefix
+	 * @return
+	 */
+	Observable<Result> lookup(final String query) {
+		if (query.length() < minLength) {
+			return Observable.just(new Result(query, null, false, null));
+		}
+		ArrayList<Character> refined = refine(query);
+		if (refined != null) {
+			Log.d("Typeahead", "refined '"+query+"' locally to "+refined.size());
+			return Observable.just(new Result(query, refined, true, null));
+		}
+		final String key = new CharacterQuery(query, true, limit, 0).key();
+		final Observable<Result> remote = marvelAPI.getCharacterMatching(query, limit, 0)
+				.map(new Func1<CharacterResponse, Result>() {
+					@Override
+					public Result call(CharacterResponse characterResponse) {
+						CharacterContainer data = characterResponse.data;
+						if (data.count >= data.total) {
+							remember(query, data.results);
+						}
+						if (cachedDB != null) { // goes ahead whether or not we wait on it
+							cachedDB.writeQueryResult(key, data.total, data.results);
+						}
+						return new Result(query, data.results, false, null);
+					}
+				})
+				.onErrorReturn(new Func1<Throwable, Result>() {
+					@Override
+					public Result call(Throwable e) {
+						return new Result(query, null, false, e);
+					}
+				});
+		if (cachedDB == null) {
+			return remote;
+		}
+		return answered(key)
+				.concatMap(new Func1<QueryResult, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(QueryResult answer) {
+						if (answer == null || System.currentTimeMillis() - answer.oldest >= ttlMs) {
+							return offline(query).concatWith(remote);
+						}
+						if (answer.isComplete()) {
+							remember(query, answer.characters);
+						}
+						Log.d("Typeahead", "answered '"+query+"' from the db");
+						return Observable.just(new Result(query, answer.characters, true, null));
+					}
+				});
+	}
+
+	/**
+	 * the api's last answer to a query, from the db
+	 * @param key
+	 * @return the answer, or null if there isn't a whole one, or the read fails
+	 */
+	private Observable<QueryResult> answered(final String key) {
+		return cachedDB.read(new Callable<QueryResult>() {
+					@Override
+					public QueryResult call() throws Exception {
+						return cachedDB.getQueryResult(key);
+					}
+				})
+				.onErrorReturn(new Func1<Throwable, QueryResult>() {
+					@Override
+					public QueryResult call(Throwable e) {
+						Log.d("Typeahead", "db read failed, "+e.getMessage());
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * search the db cache for a prefix. nothing is emitted if the cache has no matches, or the search fails, so as
+	 * not to blank out the list before the api answers
+	 * @param query
+	 * @return
+	 */
+	private Observable<Result> offline(final String query) {
+		return cachedDB.read(new Callable<ArrayList<Character>>() {
+					@Override
+					public ArrayList<Character> call() throws Exception {
+						return cachedDB.searchCharacters(query, limit).characters;
+					}
+				})
+				.concatMap(new Func1<ArrayList<Character>, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(ArrayList<Character> matches) {
+						if (matches.isEmpty()) {
+							return Observable.empty();
+						}
+						Log.d("Typeahead", "found "+matches.size()+" for '"+query+"' in the db");
+						return Observable.just(new Result(query, matches, true, null));
+					}
+				})
+				.onErrorResumeNext(new Func1<Throwable, Observable<Result>>() {
+					@Override
+					public Observable<Result> call(Throwable e) {
+						Log.d("Typeahead", "db search failed, "+e.getMessage());
+						return Observable.empty();
+					}
+				});
+	}
+
+	/**
+	 * note the complete list of matches for a prefix
+	 * @param query
+	 * @param matches
+	 */
+	synchronized void remember(String query, ArrayList<Character> matches) {
+		complete.put(query, matches);
+	}
+
+	/**
+	 * answer a prefix from the longest remembered complete prefix that it starts with
+	 * @param query
+	 * @return the matches, or null if there is no complete list to refine
+	 */
+	synchronized ArrayList<Character> refine(String query) {
+		for (int n = query.length(); n >= minLength; n--) {
+			ArrayList<Character> matches = complete.get(query.substring(0, n));
+			if (matches != null) {
+				if (n == query.length()) {
+					return matches;
+				}
+				ArrayList<Character> refined = new ArrayList<>();
+				for (Character c: matches) {
+					if (c.name != null && c.name.toLowerCase(Locale.US).startsWith(query)) {
+						refined.add(c);
+					}
+				}
+				return refined;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,103 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * the in memory lru map of characters by id
+ */
+public class CharacterCacheTest extends TestCase {
+
+	private static Character character(int id) {
+		Character c = new Character();
+		c.id = id;
+		c.name = "c"+id;
+		return c;
+	}
+
+	@Test
+	public void testGetAndPut() throws Exception {
+		CharacterCache cache = new CharacterCache(4);
+		assertNull(cache.get(1));
+		cache.put(character(1));
+		cache.put(character(2));
+		assertEquals("c1", cache.get(1).name);
+		Character replaced = character(2);
+		replaced.name = "two";
+		cache.put(replaced);
+		assertSame(replaced, cache.get(2));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		CharacterCache cache = new CharacterCache(3);
+		cache.put(character(1));
+		cache.put(character(2));
+		cache.put(character(3));
+		cache.get(1);
+		cache.put(character(4));
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		CharacterCache cache = new CharacterCache(3);
+		cache.put(character(1));
+		cache.put(character(2));
+		cache.put(character(3));
+		cache.remove(1);
+		cache.remove(7);
+		assertNull(cache.get(1));
+		assertEquals(2, cache.size());
+		cache.put(character(4));
+		cache.put(character(5));
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(3));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(3));
+	}
+
+	@Test
+	public void testAgreesWithLinkedHashMap() throws Exception {
+		final int capacity = 50;
+		CharacterCache cache = new CharacterCache(capacity);
+		LinkedHashMap<Integer, Character> reference = new LinkedHashMap<Integer, Character>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Character> eldest) {
+				return size() > capacity;
+			}
+		};
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int id = random.nextInt(200) * 1024; // ids that collide in the low bits
+			switch (random.nextInt(3)) {
+				case 0:
+					Character c = character(id);
+					cache.put(c);
+					reference.put(id, c);
+					break;
+				case 1:
+					assertSame(reference.get(id), cache.get(id));
+					break;
+				default:
+					cache.remove(id);
+					reference.remove(id);
+			}
+			assertEquals(reference.size(), cache.size());
+		}
+	}
+}
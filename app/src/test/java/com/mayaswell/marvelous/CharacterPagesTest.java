@@ -0,0 +1,152 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+/**
+ * lazily windowed lists of characters
+ */
+public class CharacterPagesTest extends TestCase {
+
+	/**
+	 * rows with ids 0 to n-1, in that order to start with, noting the first id of each window read
+	 */
+	private static class Rows implements CharacterPages.Source {
+		final ArrayList<Integer> order = new ArrayList<>();
+		int counts = 0;
+		final ArrayList<Integer> offsets = new ArrayList<>();
+
+		Rows(int n) {
+			for (int i = 0; i < n; i++) {
+				order.add(i);
+			}
+		}
+
+		@Override
+		public int[] ids() {
+			counts++;
+			int[] ids = new int[order.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = order.get(i);
+			}
+			return ids;
+		}
+
+		@Override
+		public List<Character> characters(int[] ids) {
+			offsets.add(ids[0]);
+			ArrayList<Character> found = new ArrayList<>();
+			for (int i = ids.length - 1; i >= 0; i--) { // in no particular order
+				if (order.contains(ids[i])) {
+					Character c = new Character();
+					c.id = ids[i];
+					found.add(c);
+				}
+			}
+			return found;
+		}
+	}
+
+	@Test
+	public void testReadsOnlyTheWindowsAskedFor() throws Exception {
+		Rows rows = new Rows(10000);
+		CharacterPages pages = new CharacterPages(rows, 20, 3);
+		assertEquals(10000, pages.size());
+		assertEquals(0, rows.offsets.size());
+		assertEquals(0, pages.get(0).id);
+		assertEquals(19, pages.get(19).id);
+		assertEquals(20, pages.get(20).id);
+		assertEquals(9999, pages.get(9999).id);
+		assertEquals(3, pages.getLoads());
+		assertEquals(1, rows.counts);
+		assertEquals(0, rows.offsets.get(0).intValue());
+		assertEquals(9980, rows.offsets.get(2).intValue());
+	}
+
+	@Test
+	public void testKeepsMostRecentlyUsedWindows() throws Exception {
+		Rows rows = new Rows(100);
+		CharacterPages pages = new CharacterPages(rows, 10, 2);
+		pages.get(0);
+		pages.get(15);
+		pages.get(5);
+		pages.get(25); // drops the window at 10
+		pages.get(9);
+		assertEquals(3, pages.getLoads());
+		pages.get(11);
+		assertEquals(4, pages.getLoads());
+	}
+
+	@Test
+	public void testShortWindowAndBounds() throws Exception {
+		Rows rows = new Rows(5);
+		CharacterPages pages = new CharacterPages(rows, 4, 2);
+		assertEquals(5, pages.size());
+		rows.order.remove(Integer.valueOf(3)); // gone since the ids were taken
+		assertEquals(1, pages.get(1).id);
+		assertNull(pages.get(3));
+		assertEquals(4, pages.get(4).id);
+		try {
+			pages.get(5);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testWindowsStayPutWhenRowsMove() throws Exception {
+		Rows rows = new Rows(30);
+		CharacterPages pages = new CharacterPages(rows, 10, 3);
+		assertEquals(0, pages.get(0).id);
+		// a character from the second window is used, and moves to the front, and one from the third is evicted
+		rows.order.remove(Integer.valueOf(12));
+		rows.order.add(0, 12);
+		rows.order.remove(Integer.valueOf(25));
+		for (int i = 10; i < 30; i++) {
+			if (i == 25) {
+				assertNull(pages.get(i));
+			} else {
+				assertEquals(i, pages.get(i).id);
+			}
+		}
+		assertEquals(30, pages.size());
+		assertEquals(1, rows.counts);
+	}
+
+	@Test
+	public void testLoadsWindowsOnScheduler() throws Exception {
+		Rows rows = new Rows(30);
+		TestScheduler loader = new TestScheduler();
+		CharacterPages pages = new CharacterPages(rows, 10, 3, loader, Schedulers.immediate());
+		final ArrayList<Integer> loaded = new ArrayList<>();
+		pages.setListener(new CharacterPages.Listener() {
+			@Override
+			public void onLoaded(int from, int count) {
+				loaded.add(from);
+				loaded.add(count);
+			}
+		});
+		pages.preload();
+		assertEquals(1, pages.getLoads());
+		assertEquals(5, pages.get(5).id);
+		assertNull(pages.get(15));
+		assertNull(pages.get(16)); // the one load for the window
+		assertEquals(1, pages.getLoads());
+		assertTrue(loaded.isEmpty());
+		loader.triggerActions();
+		assertEquals(2, pages.getLoads());
+		assertEquals(2, loaded.size());
+		assertEquals(10, loaded.get(0).intValue());
+		assertEquals(10, loaded.get(1).intValue());
+		assertEquals(15, pages.get(15).id);
+		assertEquals(2, rows.offsets.size());
+	}
+}
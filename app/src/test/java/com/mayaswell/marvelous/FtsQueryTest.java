@@ -0,0 +1,35 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * match expressions for the full text index
+ */
+public class FtsQueryTest extends TestCase {
+
+	@Test
+	public void testSplitsLikeTheTokenizer() throws Exception {
+		assertEquals(Arrays.asList("spider", "man"), FtsQuery.terms("  Spider-Man "));
+		assertEquals(Arrays.asList("a", "bomb", "has", "a", "bomb"), FtsQuery.terms("A-Bomb (HAS) a.bomb"));
+		assertEquals(Arrays.asList("3", "d", "man"), FtsQuery.terms("3-D Man"));
+		assertEquals(Arrays.asList("héroe"), FtsQuery.terms("héroe!"));
+	}
+
+	@Test
+	public void testPrefixMatch() throws Exception {
+		assertEquals("spi* ma*", FtsQuery.prefixMatch("Spi Ma", null));
+		assertEquals("name:spi* name:ma*", FtsQuery.prefixMatch("Spi Ma", "name"));
+	}
+
+	@Test
+	public void testQuerySyntaxIsNotPassedThrough() throws Exception {
+		assertEquals("x* or* name* y*", FtsQuery.prefixMatch("x OR name:\"y*", null));
+		assertEquals("near* not* and*", FtsQuery.prefixMatch("NEAR NOT AND", null));
+		assertNull(FtsQuery.prefixMatch(" -*\" ", null));
+		assertNull(FtsQuery.prefixMatch(null, "name"));
+	}
+}
@@ -0,0 +1,199 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Cache;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import rx.Subscriber;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+
+/**
+ * the api's calls against a local http server, through a real okhttp client and response cache
+ */
+public class MarvelAPIHttpTest extends TestCase {
+	private MockWebServer server;
+	private Cache cache;
+	private MarvelAPI marvelAPI;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MockWebServer();
+		server.start();
+		File cacheDir = Files.createTempDirectory("marvelHttpCache").toFile();
+		cache = new Cache(cacheDir, 1024 * 1024);
+		marvelAPI = new MarvelAPI(
+				server.url("/v1/public/").toString(),
+				"d69ae1426b19ec1650e79780e2fac09c",
+				"24e1aa65ba9828af4cd7415969bcff12d67cc696",
+				new OkHttpClient.Builder().cache(cache).build());
+		marvelAPI.setQuotaGovernor(new QuotaGovernor(1000, 100, 100, 0.5));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		cache.delete();
+	}
+
+	/**
+	 * an api whose response bodies note the thread that reads them off the network
+	 */
+	private MarvelAPI readerRecordingAPI(final AtomicReference<Thread> reader) {
+		Interceptor recorder = new Interceptor() {
+			@Override
+			public Response intercept(Chain chain) throws IOException {
+				final Response response = chain.proceed(chain.request());
+				final BufferedSource source = Okio.buffer(new ForwardingSource(response.body().source()) {
+					@Override
+					public long read(Buffer sink, long byteCount) throws IOException {
+						reader.set(Thread.currentThread());
+						return super.read(sink, byteCount);
+					}
+				});
+				return response.newBuilder().body(new ResponseBody() {
+					@Override
+					public MediaType contentType() {
+						return response.body().contentType();
+					}
+
+					@Override
+					public long contentLength() {
+						return response.body().contentLength();
+					}
+
+					@Override
+					public BufferedSource source() {
+						return source;
+					}
+				}).build();
+			}
+		};
+		MarvelAPI api = new MarvelAPI(server.url("/v1/public/").toString(), "apikey", "privatekey",
+				new OkHttpClient.Builder().addNetworkInterceptor(recorder).build());
+		api.setQuotaGovernor(new QuotaGovernor(1000, 100, 100, 0.5));
+		return api;
+	}
+
+	private TestSubscriber<CharacterResponse> search(String name) {
+		TestSubscriber<CharacterResponse> subscriber = new TestSubscriber<>();
+		marvelAPI.getCharacters(new CharacterQuery(name, true, -1, -1), Schedulers.immediate(), Priority.INTERACTIVE)
+				.subscribe(subscriber);
+		return subscriber;
+	}
+
+	private static CharacterResponse await(TestSubscriber<CharacterResponse> subscriber) {
+		subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+		subscriber.assertNoErrors();
+		subscriber.assertValueCount(1);
+		return subscriber.getOnNextEvents().get(0);
+	}
+
+	@Test
+	public void testRevalidatesWithEtag() throws Exception {
+		server.enqueue(new MockResponse().setHeader("ETag", "\"f0fa\"").setBody(MarvelAPITest.datapool));
+		server.enqueue(new MockResponse().setResponseCode(304));
+
+		assertEquals("Deadpool", await(search("dead")).data.results.get(0).name);
+		CharacterResponse again = await(search("dead"));
+
+		assertEquals(2, server.getRequestCount());
+		assertNull(server.takeRequest().getHeader("If-None-Match"));
+		RecordedRequest conditional = server.takeRequest();
+		assertEquals("\"f0fa\"", conditional.getHeader("If-None-Match"));
+		// signed as it went out, though the cache keys on the unsigned url
+		assertTrue(conditional.getPath().contains("hash="));
+		// the 304 is answered with the body from the cache
+		assertEquals("Deadpool", again.data.results.get(0).name);
+		assertEquals(1, marvelAPI.getCacheStats().revalidations);
+		assertEquals(1, marvelAPI.getCacheStats().hits);
+	}
+
+	@Test
+	public void testCoalescesConcurrentSearches() throws Exception {
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool).setBodyDelay(200, TimeUnit.MILLISECONDS));
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool));
+
+		TestSubscriber<CharacterResponse> first = search("dead");
+		TestSubscriber<CharacterResponse> second = search("dead");
+
+		assertSame(await(first), await(second));
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testLateJoinerGetsResult() throws Exception {
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool));
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool));
+
+		final TestSubscriber<CharacterResponse> late = new TestSubscriber<>();
+		TestSubscriber<CharacterResponse> first = new TestSubscriber<>(new Subscriber<CharacterResponse>() {
+			@Override
+			public void onCompleted() {
+			}
+
+			@Override
+			public void onError(Throwable e) {
+			}
+
+			@Override
+			public void onNext(CharacterResponse characterResponse) {
+				// the result is out, but the call is still in flight until it terminates
+				marvelAPI.getCharacters(new CharacterQuery("dead", true, -1, -1), Schedulers.immediate(), Priority.INTERACTIVE)
+						.subscribe(late);
+			}
+		});
+		marvelAPI.getCharacters(new CharacterQuery("dead", true, -1, -1), Schedulers.immediate(), Priority.INTERACTIVE)
+				.subscribe(first);
+
+		assertSame(await(first), await(late));
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testDecodesAsBodyStreamsIn() throws Exception {
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool).throttleBody(64, 10, TimeUnit.MILLISECONDS));
+		AtomicReference<Thread> reader = new AtomicReference<>();
+		marvelAPI = readerRecordingAPI(reader);
+
+		TestSubscriber<CharacterResponse> subscriber = search("dead");
+		assertEquals("Deadpool", await(subscriber).data.results.get(0).name);
+		// by default the decoder reads the body off the socket itself, with no copy in between
+		assertSame(reader.get(), subscriber.getLastSeenThread());
+	}
+
+	@Test
+	public void testBuffersBodyForComputeScheduler() throws Exception {
+		server.enqueue(new MockResponse().setBody(MarvelAPITest.datapool));
+		AtomicReference<Thread> reader = new AtomicReference<>();
+		marvelAPI = readerRecordingAPI(reader);
+		marvelAPI.setComputeScheduler(Schedulers.computation());
+
+		TestSubscriber<CharacterResponse> subscriber = search("dead");
+		assertEquals("Deadpool", await(subscriber).data.results.get(0).name);
+		assertNotSame(reader.get(), subscriber.getLastSeenThread());
+	}
+}
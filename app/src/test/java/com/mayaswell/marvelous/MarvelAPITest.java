@@ -7,6 +7,13 @@ import com.mayaswell.marvelous.MarvelAPI.ImageSize;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
 import static org.junit.Assert.*;
 
 /**
@@ -15,7 +22,7 @@ import static org.junit.Assert.*;
  */
 public class MarvelAPITest extends TestCase {
 	private MarvelAPI marvelAPI;
-	String datapool = "{"+
+	static final String datapool = "{"+
 			"\"code\":200,"+
 			"\"status\":\"ok\","+
 			"\"copyright\":\"pk\","+
@@ -58,6 +65,50 @@ public class MarvelAPITest extends TestCase {
 		assertEquals(c.resourceURI, "http://gateway.marvel.com/v1/public/characters/1009268");
 	}
 
+	@Test
+	public void testSameAsShownOnKeptFields() throws Exception {
+		MarvelAPI.Character fromApi = MarvelAPI.parseCharacterResponse(datapool).data.results.get(0);
+		// as characterAtCursor builds it, with no resource uri
+		MarvelAPI.Character fromDb = new MarvelAPI.Character();
+		fromDb.id = fromApi.id;
+		fromDb.name = fromApi.name;
+		fromDb.description = fromApi.description;
+		fromDb.thumbnail = new MarvelAPI.Image(fromApi.thumbnail.path, fromApi.thumbnail.extension);
+		assertFalse(fromApi.equals(fromDb));
+		assertTrue(CharacterRepository.sameAsShown(Collections.singletonList(fromApi), Collections.singletonList(fromDb)));
+		fromDb.resourceURI = fromApi.resourceURI;
+		assertEquals(fromApi, fromDb);
+		fromDb.description = "merc with a mouth";
+		assertFalse(fromApi.equals(fromDb));
+		assertFalse(CharacterRepository.sameAsShown(Collections.singletonList(fromApi), Collections.singletonList(fromDb)));
+	}
+
+	@Test
+	public void testParseErrorResponse() throws Exception {
+		try {
+			MarvelAPI.parseCharacterResponse("{\"code\":\"InvalidCredentials\",\"message\":\"The passed API key is invalid.\"}");
+			fail("error response should throw");
+		} catch (RuntimeException e) {
+			assertEquals(e.getMessage(), "Error status from server: The passed API key is invalid.");
+		}
+	}
+
+	@Test
+	public void testStreamingDecoder() throws Exception {
+		final ArrayList<MarvelAPI.Character> streamed = new ArrayList<>();
+		CharacterResponseDecoder decoder = new CharacterResponseDecoder(new CharacterResponseDecoder.Listener() {
+			@Override
+			public void onCharacter(MarvelAPI.Character character) {
+				streamed.add(character);
+			}
+		});
+		CharacterResponse cr = decoder.decode(new StringReader(datapool));
+		assertEquals(streamed.size(), 1);
+		assertSame(streamed.get(0), cr.data.results.get(0));
+		assertEquals(cr.data.total, 1);
+		assertEquals(cr.data.count, 1);
+	}
+
 	@Test
 	public void testImagePath() throws Exception {
 		CharacterResponse cr = MarvelAPI.parseCharacterResponse(datapool);
@@ -78,6 +129,42 @@ public class MarvelAPITest extends TestCase {
 		assertEquals(i.getURL(ImageSize.LANDSCAPE_XL), "http://i.annihil.us/u/prod/marvel/i/mg/9/90/5261a86cacb99/landscape_xlarge.jpg");
 	}
 
+	@Test
+	public void testImageSizeCovering() throws Exception {
+		assertEquals(ImageSize.PORTRAIT_S, ImageSize.covering(MarvelAPI.Aspect.PORTRAIT, 40, 0));
+		assertEquals(ImageSize.PORTRAIT_M, ImageSize.covering(MarvelAPI.Aspect.PORTRAIT, 51, 0));
+		assertEquals(ImageSize.PORTRAIT_XL, ImageSize.covering(MarvelAPI.Aspect.PORTRAIT, 150, 200));
+		assertEquals(ImageSize.PORTRAIT_INCREDIBLE, ImageSize.covering(MarvelAPI.Aspect.PORTRAIT, 200, 300));
+		assertEquals(ImageSize.PORTRAIT_UNCANNY, ImageSize.covering(MarvelAPI.Aspect.PORTRAIT, 1048, 0));
+		assertEquals(ImageSize.STANDARD_AMAZING, ImageSize.covering(MarvelAPI.Aspect.STANDARD, 160, 160));
+		assertEquals(ImageSize.LANDSCAPE_AMAZING, ImageSize.covering(MarvelAPI.Aspect.LANDSCAPE, 200, 150));
+	}
+
+	@Test
+	public void testRequestSigning() throws Exception {
+		Request unsigned = marvelAPI.characterRequest(10, 20, "Dead", true);
+		assertNull(unsigned.url().queryParameter("ts"));
+		assertNull(unsigned.url().queryParameter("hash"));
+		assertEquals(unsigned.url(), marvelAPI.characterRequest(10, 20, "Dead", true).url());
+		HttpUrl signed = marvelAPI.signRequest(unsigned).url();
+		String ts = signed.queryParameter("ts");
+		assertNotNull(ts);
+		assertEquals(MarvelAPI.md5(ts+"24e1aa65ba9828af4cd7415969bcff12d67cc696"+"d69ae1426b19ec1650e79780e2fac09c"), signed.queryParameter("hash"));
+		assertEquals("Dead", signed.queryParameter("nameStartsWith"));
+	}
+
+	@Test
+	public void testCharacterQuery() throws Exception {
+		CharacterQuery q = new CharacterQuery(" Spider ", true, 0, -1);
+		assertEquals(q, new CharacterQuery("spider", true, -1, 0));
+		assertEquals(q.hashCode(), new CharacterQuery("spider", true, -1, 0).hashCode());
+		assertEquals(q.key(), new CharacterQuery("SPIDER", true, -1, 0).key());
+		assertFalse(q.equals(new CharacterQuery("spider", false, -1, 0)));
+		assertFalse(q.equals(new CharacterQuery("spider", true, 20, 0)));
+		assertFalse(q.equals(new CharacterQuery("spider", true, -1, 20)));
+		assertEquals(marvelAPI.characterRequest(q).url(), marvelAPI.characterRequest(new CharacterQuery("Spider", true, 0, 0)).url());
+	}
+
 	@Test
 	public void testMd5() throws Exception {
 		assertEquals("", MarvelAPI.md5(null));
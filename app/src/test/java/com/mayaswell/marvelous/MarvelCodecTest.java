@@ -0,0 +1,110 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+import com.mayaswell.marvelous.MarvelAPI.CharacterResponse;
+import com.mayaswell.marvelous.MarvelAPI.ResourceContainer;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+/**
+ * checks that the shared codec gives the same objects as a plain reflective gson parse
+ */
+public class MarvelCodecTest extends TestCase {
+	String datapool2 = "{"+
+			"\"code\":200,"+
+			"\"status\":\"ok\","+
+			"\"etag\":\"f0fbae65eb2f8f28bdeea0a29be8749a4e67acb3\","+
+			"\"data\":{"+
+			"\"offset\":0,"+
+			"\"limit\":20,"+
+			"\"total\":2,"+
+			"\"count\":2,"+
+			"\"results\":"+"["+
+			"{\"id\":1011334,\"name\":\"3-D Man\",\"description\":\"\",\"modified\":\"2014-04-29T14:18:17-0400\",\"thumbnail\":{\"path\":\"http://i.annihil.us/u/prod/marvel/i/mg/c/e0/535fecbbb9784\",\"extension\":\"jpg\"},\"resourceURI\":\"http://gateway.marvel.com/v1/public/characters/1011334\",\"comics\":{\"available\":11,\"items\":[{\"resourceURI\":\"http://gateway.marvel.com/v1/public/comics/21366\",\"name\":\"Avengers: The Initiative (2007) #14\"}],\"returned\":1},\"urls\":[{\"type\":\"detail\",\"url\":\"http://marvel.com/characters/74/3-d_man\"}]},"+
+			"{\"id\":1017100,\"name\":\"A-Bomb (HAS)\",\"description\":\"Rick Jones has been Hulk's best bud since day one.\",\"modified\":\"2013-09-18T15:54:04-0400\",\"thumbnail\":{\"path\":\"http://i.annihil.us/u/prod/marvel/i/mg/3/20/5232158de5b16\",\"extension\":\"jpg\"},\"resourceURI\":\"http://gateway.marvel.com/v1/public/characters/1017100\"}"+
+			"]"+
+			"}"+
+			"}";
+
+	private void assertSameResponse(CharacterResponse expected, CharacterResponse actual) {
+		assertEquals(expected.code, actual.code);
+		assertEquals(expected.status, actual.status);
+		assertEquals(expected.copyright, actual.copyright);
+		assertEquals(expected.attributionText, actual.attributionText);
+		assertEquals(expected.attributionHTML, actual.attributionHTML);
+		assertEquals(expected.data.offset, actual.data.offset);
+		assertEquals(expected.data.limit, actual.data.limit);
+		assertEquals(expected.data.total, actual.data.total);
+		assertEquals(expected.data.count, actual.data.count);
+		assertEquals(expected.data.results, actual.data.results);
+		for (int i = 0; i < expected.data.results.size(); i++) {
+			assertEquals(expected.data.results.get(i).resourceURI, actual.data.results.get(i).resourceURI);
+		}
+	}
+
+	@Test
+	public void testMatchesReflectiveParse() throws Exception {
+		for (String json: new String[] { MarvelAPITest.datapool, datapool2 }) {
+			CharacterResponse reflected = new GsonBuilder().create().fromJson(json, CharacterResponse.class);
+			assertSameResponse(reflected, MarvelCodec.gson().fromJson(json, CharacterResponse.class));
+			assertSameResponse(reflected, MarvelAPI.parseCharacterResponse(json));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		CharacterResponse cr = MarvelAPI.parseCharacterResponse(datapool2);
+		String json = MarvelCodec.gson().toJson(cr);
+		assertSameResponse(cr, MarvelAPI.parseCharacterResponse(json));
+	}
+
+	@Test
+	public void testResourceSummaries() throws Exception {
+		CharacterResponse cr = MarvelAPI.parseCharacterResponse(datapool2);
+		Character c0 = cr.data.results.get(0);
+		assertEquals(11, c0.comics.available);
+		assertNull(c0.series);
+		assertNull(cr.data.results.get(1).comics);
+	}
+
+	@Test
+	public void testResourceResponse() throws Exception {
+		String json = "{\"code\":200,\"status\":\"Ok\",\"data\":{\"offset\":25,\"limit\":25,\"total\":27,\"count\":2,"+
+				"\"results\":[{\"id\":21366,\"digitalId\":0,\"title\":\"Avengers: The Initiative (2007) #14\","+
+				"\"description\":null,\"thumbnail\":{\"path\":\"http://i.annihil.us/u/prod/marvel/i/mg/6/20/58dd057d304d1\",\"extension\":\"jpg\"}},"+
+				"{\"id\":24571,\"title\":\"Avengers: The Initiative (2007) #14 (SPOTLIGHT VARIANT)\",\"prices\":[{\"type\":\"printPrice\",\"price\":2.99}]}"+
+				"]}}";
+		ResourceContainer data = MarvelCodec.readResourceResponse(new JsonReader(new StringReader(json)));
+		assertEquals(25, data.offset);
+		assertEquals(27, data.total);
+		assertEquals(2, data.results.size());
+		assertEquals(21366, data.results.get(0).id);
+		assertEquals("", data.results.get(0).description);
+		assertEquals("jpg", data.results.get(0).thumbnail.extension);
+		assertEquals("Avengers: The Initiative (2007) #14 (SPOTLIGHT VARIANT)", data.results.get(1).title);
+	}
+
+	@Test
+	public void testResourceErrorResponse() throws Exception {
+		String json = "{\"code\":\"InvalidCredentials\",\"message\":\"The passed API key is invalid.\"}";
+		try {
+			MarvelCodec.readResourceResponse(new JsonReader(new StringReader(json)));
+			fail("expected an error response to throw");
+		} catch (RuntimeException e) {
+			assertEquals("Error status from server: The passed API key is invalid.", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testExtensionsShared() throws Exception {
+		CharacterResponse cr = MarvelAPI.parseCharacterResponse(datapool2);
+		Character c0 = cr.data.results.get(0);
+		Character c1 = cr.data.results.get(1);
+		assertSame(c0.thumbnail.extension, c1.thumbnail.extension);
+	}
+}
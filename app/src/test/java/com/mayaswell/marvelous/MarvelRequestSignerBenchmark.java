@@ -0,0 +1,72 @@
+package com.mayaswell.marvelous;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import okhttp3.Request;
+
+import static com.mayaswell.marvelous.MarvelRequestSignerTest.apiKey;
+import static com.mayaswell.marvelous.MarvelRequestSignerTest.legacyCharacterRequest;
+import static com.mayaswell.marvelous.MarvelRequestSignerTest.privateKey;
+import static com.mayaswell.marvelous.MarvelRequestSignerTest.urlBase;
+
+/**
+ * times the memoized signer against the plain md5 path under a bulk paging load. It takes a while and only prints
+ * its numbers, so it's left out of the normal test run: take the @Ignore off to measure. It's a plain junit4 class,
+ * rather than a TestCase, as the junit3 runner doesn't honour @Ignore.
+ */
+@Ignore("benchmark, run by hand")
+public class MarvelRequestSignerBenchmark {
+
+	private static final int WARMUP = 20000;
+	private static final int PAGES = 100000;
+
+	private MarvelAPI marvelAPI = new MarvelAPI(urlBase, apiKey, privateKey);
+
+	@Test
+	public void benchmarkBulkPaging() throws Exception {
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += legacyCharacterRequest(100, i * 100).url().querySize();
+			sink += signedCharacterRequest(100, i * 100).url().querySize();
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < PAGES; i++) {
+			sink += legacyCharacterRequest(100, i * 100).url().querySize();
+		}
+		long t1 = System.nanoTime();
+		for (int i = 0; i < PAGES; i++) {
+			sink += signedCharacterRequest(100, i * 100).url().querySize();
+		}
+		long t2 = System.nanoTime();
+		System.out.println("request signing, "+PAGES+" pages: legacy "+((t1 - t0) / PAGES)+" ns/request, signer "
+				+((t2 - t1) / PAGES)+" ns/request ("+sink+")");
+	}
+
+	@Test
+	public void benchmarkToHex() throws Exception {
+		byte[] digest = DigestUtils.md5(privateKey);
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += new String(Hex.encodeHex(digest)).length();
+			sink += MarvelRequestSigner.toHex(digest).length();
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < PAGES; i++) {
+			sink += new String(Hex.encodeHex(digest)).length();
+		}
+		long t1 = System.nanoTime();
+		for (int i = 0; i < PAGES; i++) {
+			sink += MarvelRequestSigner.toHex(digest).length();
+		}
+		long t2 = System.nanoTime();
+		System.out.println("hex, "+PAGES+" digests: commons codec "+((t1 - t0) / PAGES)+" ns, toHex "
+				+((t2 - t1) / PAGES)+" ns ("+sink+")");
+	}
+
+	private Request signedCharacterRequest(int limit, int offset) {
+		return marvelAPI.signRequest(marvelAPI.characterRequest(limit, offset, null, false));
+	}
+}
@@ -0,0 +1,76 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+/**
+ * checks the memoized signer against the plain md5 path
+ */
+public class MarvelRequestSignerTest extends TestCase {
+	static final String urlBase = "http://gateway.marvel.com/v1/public/";
+	static final String apiKey = "d69ae1426b19ec1650e79780e2fac09c";
+	static final String privateKey = "24e1aa65ba9828af4cd7415969bcff12d67cc696";
+
+	private MarvelRequestSigner signer = new MarvelRequestSigner(urlBase, apiKey, privateKey);
+	private MarvelAPI marvelAPI = new MarvelAPI(urlBase, apiKey, privateKey);
+
+	/**
+	 * the request path as it was before the signer: parse the base, box the time and hash it on every call
+	 */
+	static Request legacyCharacterRequest(int limit, int offset) {
+		HttpUrl okurl = HttpUrl.parse(urlBase);
+		final Long tsLong = System.currentTimeMillis()/1000;
+		final String ts = tsLong.toString();
+		final String hash = MarvelAPI.md5(ts + privateKey + apiKey);
+		HttpUrl.Builder b = okurl.newBuilder()
+				.addEncodedPathSegment("characters")
+				.addQueryParameter("apikey", apiKey)
+				.addQueryParameter("ts", ts)
+				.addQueryParameter("hash", hash);
+		if (limit > 0) {
+			b.addQueryParameter("limit", Integer.toString(limit));
+		}
+		if (offset > 0) {
+			b.addQueryParameter("offset", Integer.toString(offset));
+		}
+		return new Request.Builder().url(b.build()).build();
+	}
+
+	private Request signedCharacterRequest(int limit, int offset) {
+		return marvelAPI.signRequest(marvelAPI.characterRequest(limit, offset, null, false));
+	}
+
+	@Test
+	public void testSignatureMatchesMd5() throws Exception {
+		for (long second: new long[] { 0, 1477238400, 1477238401, 2000000000 }) {
+			String ts = Long.toString(second);
+			MarvelRequestSigner.Signature s = signer.signature(second);
+			assertEquals(ts, s.ts);
+			assertEquals(MarvelAPI.md5(ts + privateKey + apiKey), s.hash);
+			assertSame(s, signer.signature(second));
+		}
+	}
+
+	@Test
+	public void testToHex() throws Exception {
+		assertEquals("", MarvelRequestSigner.toHex(new byte[0]));
+		assertEquals("00017f80ff", MarvelRequestSigner.toHex(new byte[] { 0, 1, 127, -128, -1 }));
+	}
+
+	@Test
+	public void testSameUrlAsLegacy() throws Exception {
+		HttpUrl legacy = legacyCharacterRequest(100, 300).url();
+		HttpUrl signed = signedCharacterRequest(100, 300).url();
+		if (legacy.queryParameter("ts").equals(signed.queryParameter("ts"))) { // unless we've crossed a second
+			assertEquals(legacy.queryParameter("hash"), signed.queryParameter("hash"));
+		}
+		assertEquals(legacy.queryParameter("limit"), signed.queryParameter("limit"));
+		assertEquals(legacy.queryParameter("offset"), signed.queryParameter("offset"));
+		assertEquals(legacy.queryParameter("apikey"), signed.queryParameter("apikey"));
+		assertEquals(legacy.encodedPath(), signed.encodedPath());
+	}
+}
@@ -0,0 +1,180 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.mayaswell.marvelous.QuotaGovernor.Priority;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+/**
+ * token bucket and daily budget behaviour of the quota governor, against a fake clock
+ */
+public class QuotaGovernorTest extends TestCase {
+	private static long clock = 1000;
+
+	static class TestGovernor extends QuotaGovernor {
+		TestGovernor(int dailyBudget, int burst, double refillPerSecond, double backgroundShare) {
+			super(dailyBudget, burst, refillPerSecond, backgroundShare);
+		}
+
+		TestGovernor(int dailyBudget, int burst, double refillPerSecond, double backgroundShare, Store store) {
+			super(dailyBudget, burst, refillPerSecond, backgroundShare, store);
+		}
+
+		@Override
+		protected long now() {
+			return clock;
+		}
+	}
+
+	static class MemoryStore implements QuotaGovernor.Store {
+		long day = -1;
+		int used;
+		int backgroundUsed;
+
+		@Override
+		public long getDay() {
+			return day;
+		}
+
+		@Override
+		public int getUsed() {
+			return used;
+		}
+
+		@Override
+		public int getBackgroundUsed() {
+			return backgroundUsed;
+		}
+
+		@Override
+		public void put(long day, int used, int backgroundUsed) {
+			this.day = day;
+			this.used = used;
+			this.backgroundUsed = backgroundUsed;
+		}
+	}
+
+	@Test
+	public void testBurstAndRefill() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(100, 4, 2, 0.5);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		}
+		assertEquals(500, g.tryAcquire(Priority.INTERACTIVE));
+		clock += 500;
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(5, g.getCounters().usedToday);
+	}
+
+	@Test
+	public void testBackgroundKeepsReserve() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(100, 4, 1, 0.5);
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		assertTrue(g.tryAcquire(Priority.BACKGROUND) > 0);
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(2, g.getCounters().backgroundUsedToday);
+	}
+
+	@Test
+	public void testDailyBudget() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(4, 10, 1, 0.5);
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		try {
+			g.tryAcquire(Priority.BACKGROUND);
+			fail("background share should be used up");
+		} catch (QuotaGovernor.QuotaExceededException e) {
+		}
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		try {
+			g.tryAcquire(Priority.INTERACTIVE);
+			fail("daily budget should be used up");
+		} catch (QuotaGovernor.QuotaExceededException e) {
+		}
+		clock += 24 * 60 * 60 * 1000L;
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(1, g.getCounters().usedToday);
+	}
+
+	@Test
+	public void testRateLimitedHold() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(100, 4, 1, 0.5);
+		g.onRateLimited(3000);
+		assertEquals(3000, g.tryAcquire(Priority.INTERACTIVE));
+		clock += 3000;
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(1, g.getCounters().throttled);
+	}
+
+	@Test
+	public void testRefund() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(100, 1, 1, 0.5);
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertTrue(g.tryAcquire(Priority.INTERACTIVE) > 0);
+		g.refund(Priority.INTERACTIVE);
+		assertEquals(0, g.getCounters().usedToday);
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(1, g.getCounters().usedToday);
+	}
+
+	@Test
+	public void testAcquireWaitsOnTimer() throws Exception {
+		clock = 1000;
+		QuotaGovernor g = new TestGovernor(100, 1, 1, 0.5);
+		TestScheduler scheduler = new TestScheduler();
+		TestSubscriber<Priority> first = new TestSubscriber<>();
+		g.acquire(Priority.INTERACTIVE, scheduler).subscribe(first);
+		first.assertValue(Priority.INTERACTIVE);
+		TestSubscriber<Priority> second = new TestSubscriber<>();
+		g.acquire(Priority.INTERACTIVE, scheduler).subscribe(second);
+		second.assertNoValues();
+		clock += 1000;
+		scheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS);
+		second.assertValue(Priority.INTERACTIVE);
+		second.assertCompleted();
+		// a wait that is given up doesn't take a token
+		TestSubscriber<Priority> dropped = new TestSubscriber<>();
+		g.acquire(Priority.INTERACTIVE, scheduler).subscribe(dropped);
+		dropped.unsubscribe();
+		clock += 1000;
+		scheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS);
+		dropped.assertNoValues();
+		assertEquals(2, g.getCounters().usedToday);
+	}
+
+	@Test
+	public void testStoreKeepsDay() throws Exception {
+		clock = 1000;
+		MemoryStore store = new MemoryStore();
+		QuotaGovernor g = new TestGovernor(4, 10, 1, 0.5, store);
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		assertEquals(0, g.tryAcquire(Priority.INTERACTIVE));
+		// as after a restart
+		g = new TestGovernor(4, 10, 1, 0.5, store);
+		assertEquals(2, g.getCounters().usedToday);
+		assertEquals(1, g.getCounters().backgroundUsedToday);
+		assertEquals(0, g.tryAcquire(Priority.BACKGROUND));
+		try {
+			g.tryAcquire(Priority.BACKGROUND);
+			fail("background share should be used up across the restart");
+		} catch (QuotaGovernor.QuotaExceededException e) {
+		}
+		// counts from another day don't carry over
+		clock += 24 * 60 * 60 * 1000L;
+		g = new TestGovernor(4, 10, 1, 0.5, store);
+		assertEquals(0, g.getCounters().usedToday);
+	}
+}
@@ -0,0 +1,78 @@
+package com.mayaswell.marvelous;
+
+import junit.framework.TestCase;
+import com.mayaswell.marvelous.MarvelAPI.Character;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * local refinement of typeahead prefixes from complete earlier results
+ */
+public class TypeaheadTest extends TestCase {
+
+	private static Character character(int id, String name) {
+		Character c = new Character();
+		c.id = id;
+		c.name = name;
+		return c;
+	}
+
+	private static ArrayList<Character> spiders() {
+		ArrayList<Character> matches = new ArrayList<>();
+		matches.add(character(1, "Spider-Man"));
+		matches.add(character(2, "Spider-Woman"));
+		matches.add(character(3, "Spiral"));
+		return matches;
+	}
+
+	@Test
+	public void testRefinesLongerPrefix() throws Exception {
+		Typeahead t = new Typeahead(null, 2, 100);
+		t.remember("spi", spiders());
+		ArrayList<Character> refined = t.refine("spider-w");
+		assertEquals(1, refined.size());
+		assertEquals(2, refined.get(0).id);
+		assertEquals(3, t.refine("spi").size());
+		assertEquals(0, t.refine("spix").size());
+	}
+
+	@Test
+	public void testNoRefinementWithoutCompletePrefix() throws Exception {
+		Typeahead t = new Typeahead(null, 2, 100);
+		t.remember("spi", spiders());
+		assertNull(t.refine("sp"));
+		assertNull(t.refine("hulk"));
+	}
+
+	@Test
+	public void testUsesLongestCompletePrefix() throws Exception {
+		Typeahead t = new Typeahead(null, 2, 100);
+		t.remember("sp", spiders());
+		ArrayList<Character> spiderOnly = new ArrayList<>();
+		spiderOnly.add(character(1, "Spider-Man"));
+		t.remember("spider", spiderOnly);
+		assertEquals(1, t.refine("spider-").size());
+		assertEquals(3, t.refine("spi").size());
+	}
+
+	@Test
+	public void testRefinesUnderTurkishLocale() throws Exception {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			Typeahead t = new Typeahead(null, 1, 100);
+			ArrayList<Character> irons = new ArrayList<>();
+			irons.add(character(1, "Iron Man"));
+			irons.add(character(2, "Iceman"));
+			t.remember("i", irons);
+			ArrayList<Character> refined = t.refine("ir");
+			assertEquals(1, refined.size());
+			assertEquals(1, refined.get(0).id);
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+}